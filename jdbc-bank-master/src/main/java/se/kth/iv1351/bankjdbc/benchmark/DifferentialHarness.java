@@ -0,0 +1,448 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.InMemorySoundGoodStore;
+import se.kth.iv1351.bankjdbc.integration.OverloadedException;
+import se.kth.iv1351.bankjdbc.integration.RentalNotFoundException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodDAO;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodStore;
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.InstrumentDTO;
+import se.kth.iv1351.bankjdbc.model.Rental;
+import se.kth.iv1351.bankjdbc.model.TypeAvailability;
+import se.kth.iv1351.bankjdbc.startup.DemoCatalog;
+
+/**
+ * Checks that two stores give the same answers, e.g. the SoundGood database
+ * and the in-memory store, or a DAO with rewritten queries and the one it
+ * replaces, and compares how fast they are.
+ *
+ * Both stores start from the same catalog. The store that is not in memory is
+ * read, and the in-memory store is restored from it. Then three phases are run:
+ * <ol>
+ * <li>The same random sequence of LIST, RENT and END operations is run against
+ * both stores, one operation at a time, and every answer is compared. Every
+ * <code>FULL_COMPARISON_EVERY</code> operations all available instruments, the
+ * overview per type and the active rentals are compared too.</li>
+ * <li>Each store in turn is loaded by many concurrent clients, with the
+ * instruments drawn with a Zipf distribution so that a few are contended. The
+ * answers can not be compared, they depend on the interleaving, but the
+ * throughput and latency are. Both stores are loaded for
+ * <code>WARMUP_SECONDS</code> before they are measured, so that the store
+ * measured first is not slowed down by the JIT compiler. Only answered
+ * operations count towards the throughput and latency, an END of an instrument
+ * that is not rented is an answer too. The operations shed because the store
+ * was overloaded, and those that failed, are counted separately.</li>
+ * <li>The final state of each store is checked: no instrument is rented twice,
+ * no student has more than two active rentals, and every instrument is either
+ * available or rented.</li>
+ * </ol>
+ * The sequence of the first phase is given by the seed, which is printed, so a
+ * mismatch can be reproduced with <code>--seed</code>. The rentals in the
+ * database are changed, run it against a local copy only, e.g.
+ * <code>mvn exec:java -Dexec.mainClass=se.kth.iv1351.bankjdbc.benchmark.DifferentialHarness
+ * -Dexec.args="--reference database --candidate in-memory"</code>
+ *
+ * Options, all optional:
+ * <ul>
+ * <li><code>--reference store</code> the store whose answers are taken as
+ * right, <code>database</code> or <code>in-memory</code>, database.</li>
+ * <li><code>--candidate store</code> the store that is checked, in-memory.</li>
+ * <li><code>--operations n</code> the number of compared operations,
+ * 2000.</li>
+ * <li><code>--clients n</code> the number of concurrent clients, 16.</li>
+ * <li><code>--seconds n</code> how long to load each store, 5.</li>
+ * <li><code>--students n</code> the number of students, few so that the
+ * rental limit is reached, 50.</li>
+ * <li><code>--instruments n</code> the number of generated instruments when
+ * both stores are in memory, 1000.</li>
+ * <li><code>--seed n</code> the seed of the compared sequence, random.</li>
+ * </ul>
+ * Exits with status 1 if any answer differed or any invariant was broken.
+ */
+public class DifferentialHarness {
+    private static final int MAX_RENTALS_PER_STUDENT = 2;
+    private static final int FULL_COMPARISON_EVERY = 100;
+    private static final int MISMATCHES_SHOWN = 10;
+    private static final int WARMUP_SECONDS = 2;
+    private static final Duration OPERATION_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration CATALOG_TIMEOUT = Duration.ofMinutes(1);
+
+    private enum Operation {
+        LIST, RENT, END
+    }
+
+    @FunctionalInterface
+    private interface StoreCall {
+        Object call(SoundGoodStore store) throws SoundGoodException;
+    }
+
+    private final SoundGoodStore reference;
+    private final SoundGoodStore candidate;
+    private final List<Integer> instrumentIds = new ArrayList<>();
+    private final List<String> types;
+    private final List<String> sites;
+    private final int students;
+    private final List<String> mismatches = new ArrayList<>();
+    private int mismatchCount;
+
+    private DifferentialHarness(SoundGoodStore reference, SoundGoodStore candidate, CatalogState catalog,
+            int students) {
+        this.reference = reference;
+        this.candidate = candidate;
+        this.students = students;
+        Set<String> typeSet = new TreeSet<>();
+        Set<String> siteSet = new TreeSet<>();
+        for (Instrument instrument : catalog.getInstruments()) {
+            instrumentIds.add(instrument.getInstrument_id());
+            typeSet.add(instrument.getInstrument_type());
+            siteSet.add(instrument.getSite());
+        }
+        this.types = new ArrayList<>(typeSet);
+        this.sites = new ArrayList<>(siteSet);
+        sites.add(null);
+    }
+
+    /**
+     * @param args See the class comment.
+     */
+    public static void main(String[] args) throws SoundGoodException, InterruptedException {
+        String referenceKind = "database";
+        String candidateKind = "in-memory";
+        int operations = 2000;
+        int clients = 16;
+        int seconds = 5;
+        int students = 50;
+        int instruments = 1000;
+        long seed = new Random().nextLong();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--reference":
+                    referenceKind = args[++i];
+                    break;
+                case "--candidate":
+                    candidateKind = args[++i];
+                    break;
+                case "--operations":
+                    operations = Integer.parseInt(args[++i]);
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--students":
+                    students = Integer.parseInt(args[++i]);
+                    break;
+                case "--instruments":
+                    instruments = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (referenceKind.equals("database") && candidateKind.equals("database")) {
+            throw new IllegalArgumentException("Both stores would change the same database, one must be in-memory.");
+        }
+        SoundGoodStore reference = open(referenceKind);
+        SoundGoodStore candidate = open(candidateKind);
+        try {
+            CatalogState catalog = alignCatalogs(reference, candidate, instruments);
+            DifferentialHarness harness = new DifferentialHarness(reference, candidate, catalog, students);
+            System.out.println("Comparing " + candidateKind + " with " + referenceKind + ", "
+                    + catalog.getInstruments().size() + " instruments, " + catalog.getActive_rentals().size()
+                    + " active rentals, seed " + seed);
+            harness.compare(operations, new Random(seed));
+            System.out.println(String.format("%-9s %12s %12s %8s %12s %12s %9s %9s %9s %9s", "op", "ref ops/s",
+                    "cand ops/s", "ratio", "ref p99 ms", "cand p99 ms", "ref shed", "ref fail", "cand shed",
+                    "cand fail"));
+            harness.load(reference, clients, WARMUP_SECONDS);
+            harness.load(candidate, clients, WARMUP_SECONDS);
+            LoadResult referenceLoad = harness.load(reference, clients, seconds);
+            LoadResult candidateLoad = harness.load(candidate, clients, seconds);
+            for (Operation operation : Operation.values()) {
+                double referenceRate = referenceLoad.rate(operation);
+                double candidateRate = candidateLoad.rate(operation);
+                System.out.println(String.format("%-9s %12.1f %12.1f %7.2fx %12.3f %12.3f %9d %9d %9d %9d",
+                        operation, referenceRate, candidateRate,
+                        referenceRate == 0 ? 0 : candidateRate / referenceRate,
+                        referenceLoad.percentile(operation, 99) / 1e6,
+                        candidateLoad.percentile(operation, 99) / 1e6,
+                        referenceLoad.shed(operation), referenceLoad.failed(operation),
+                        candidateLoad.shed(operation), candidateLoad.failed(operation)));
+            }
+            List<String> violations = new ArrayList<>();
+            violations.addAll(harness.checkInvariants(referenceKind + " (reference)", reference));
+            violations.addAll(harness.checkInvariants(candidateKind + " (candidate)", candidate));
+            harness.mismatches.forEach(System.out::println);
+            violations.forEach(System.out::println);
+            System.out.println(operations + " operations compared, " + harness.mismatchCount + " mismatches, "
+                    + violations.size() + " broken invariants.");
+            if (harness.mismatchCount > 0 || !violations.isEmpty()) {
+                System.exit(1);
+            }
+        } finally {
+            candidate.close();
+            reference.close();
+        }
+    }
+
+    private static SoundGoodStore open(String kind) throws SoundGoodException {
+        switch (kind) {
+            case "database":
+                return new SoundGoodDAO();
+            case "in-memory":
+                return new InMemorySoundGoodStore();
+            default:
+                throw new IllegalArgumentException("Unknown store " + kind + ", use database or in-memory.");
+        }
+    }
+
+    /**
+     * Restores the in-memory stores from the catalog of the other store, or fills
+     * both with the same generated catalog if both are in memory.
+     *
+     * @return The catalog both stores now hold.
+     */
+    private static CatalogState alignCatalogs(SoundGoodStore reference, SoundGoodStore candidate,
+            int instruments) throws SoundGoodException {
+        CatalogState catalog;
+        if (!(reference instanceof InMemorySoundGoodStore)) {
+            catalog = reference.readCatalogState(Deadline.after(CATALOG_TIMEOUT));
+        } else if (!(candidate instanceof InMemorySoundGoodStore)) {
+            catalog = candidate.readCatalogState(Deadline.after(CATALOG_TIMEOUT));
+        } else {
+            catalog = DemoCatalog.fill(new InMemorySoundGoodStore(), instruments)
+                    .readCatalogState(Deadline.after(CATALOG_TIMEOUT));
+        }
+        for (SoundGoodStore store : List.of(reference, candidate)) {
+            if (store instanceof InMemorySoundGoodStore) {
+                ((InMemorySoundGoodStore) store).restore(catalog);
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Runs the same operations against both stores, one at a time, and records
+     * every answer that differs.
+     */
+    private void compare(int operations, Random random) {
+        for (int i = 1; i <= operations; i++) {
+            int instrument = instrumentIds.get(random.nextInt(instrumentIds.size()));
+            switch (Operation.values()[random.nextInt(Operation.values().length)]) {
+                case LIST:
+                    String type = types.get(random.nextInt(types.size()));
+                    String site = sites.get(random.nextInt(sites.size()));
+                    compare(i, "LIST " + type + " at " + (site == null ? "all sites" : site),
+                            store -> idsOf(store.printListInstrument(type, site, Deadline.after(OPERATION_TIMEOUT))));
+                    break;
+                case RENT:
+                    int student = random.nextInt(students) + 1;
+                    compare(i, "RENT " + student + " " + instrument,
+                            store -> store.rentInstrument(student, instrument, Deadline.after(OPERATION_TIMEOUT)));
+                    break;
+                default:
+                    compare(i, "END " + instrument, store -> {
+                        store.terminateRental(instrument, Deadline.after(OPERATION_TIMEOUT));
+                        return "terminated";
+                    });
+            }
+            if (i % FULL_COMPARISON_EVERY == 0 || i == operations) {
+                compareAll(i);
+            }
+        }
+    }
+
+    private void compareAll(int index) {
+        compare(index, "all available instruments",
+                store -> idsOf(store.printListAllInstruments(null, Deadline.after(OPERATION_TIMEOUT))));
+        compare(index, "overview per type", store -> {
+            List<String> overview = new ArrayList<>();
+            for (TypeAvailability type : store.countAvailableByType(null, 3, Deadline.after(OPERATION_TIMEOUT))) {
+                overview.add(type.getInstrument_type() + " " + type.getAvailable() + " " + idsOf(type.getCheapest()));
+            }
+            return overview;
+        });
+        compare(index, "active rentals", store -> {
+            Set<String> rentals = new TreeSet<>();
+            for (Rental rental : store.readCatalogState(Deadline.after(CATALOG_TIMEOUT)).getActive_rentals()) {
+                rentals.add(rental.getStudent_id() + ":" + rental.getInstrument().getInstrument_id());
+            }
+            return rentals;
+        });
+    }
+
+    private void compare(int index, String description, StoreCall call) {
+        Object expected = outcome(reference, call);
+        Object actual = outcome(candidate, call);
+        if (!expected.equals(actual)) {
+            if (++mismatchCount <= MISMATCHES_SHOWN) {
+                mismatches.add("Mismatch at operation " + index + ", " + description + ": expected " + expected
+                        + ", was " + actual);
+            }
+        }
+    }
+
+    /**
+     * The stores may fail for different reasons with different messages, only
+     * that an operation failed is compared.
+     */
+    private static Object outcome(SoundGoodStore store, StoreCall call) {
+        try {
+            return call.call(store);
+        } catch (SoundGoodException e) {
+            return "failed";
+        }
+    }
+
+    private static List<Integer> idsOf(List<? extends InstrumentDTO> instruments) {
+        List<Integer> ids = new ArrayList<>(instruments.size());
+        for (InstrumentDTO instrument : instruments) {
+            ids.add(instrument.getInstrument_id());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Loads the specified store with random operations from many concurrent
+     * clients.
+     */
+    private LoadResult load(SoundGoodStore store, int clients, int seconds) throws InterruptedException {
+        LoadResult result = new LoadResult();
+        ZipfGenerator popularity = new ZipfGenerator(instrumentIds.size(), 1.0);
+        ExecutorService executor = LoadGenerator.newClientExecutor(clients);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < endNanos) {
+                    Operation operation = Operation.values()[random.nextInt(Operation.values().length)];
+                    int instrument = instrumentIds.get(popularity.next() - 1);
+                    long opStartNanos = System.nanoTime();
+                    try {
+                        switch (operation) {
+                            case LIST:
+                                store.printListInstrument(types.get(random.nextInt(types.size())), null,
+                                        Deadline.after(OPERATION_TIMEOUT));
+                                break;
+                            case RENT:
+                                store.rentInstrument(random.nextInt(students) + 1, instrument,
+                                        Deadline.after(OPERATION_TIMEOUT));
+                                break;
+                            default:
+                                store.terminateRental(instrument, Deadline.after(OPERATION_TIMEOUT));
+                        }
+                    } catch (RentalNotFoundException notRented) {
+                        // An answer like any other.
+                    } catch (OverloadedException e) {
+                        result.shed[operation.ordinal()].increment();
+                        continue;
+                    } catch (SoundGoodException e) {
+                        result.failed[operation.ordinal()].increment();
+                        continue;
+                    }
+                    result.latencies[operation.ordinal()].record(System.nanoTime() - opStartNanos);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    /**
+     * @return A description of every invariant the final state of the store
+     *         breaks.
+     */
+    private List<String> checkInvariants(String name, SoundGoodStore store) throws SoundGoodException {
+        List<String> violations = new ArrayList<>();
+        CatalogState state = store.readCatalogState(Deadline.after(CATALOG_TIMEOUT));
+        Map<Integer, Integer> rentalsPerInstrument = new HashMap<>();
+        Map<Integer, Integer> rentalsPerStudent = new HashMap<>();
+        for (Rental rental : state.getActive_rentals()) {
+            rentalsPerInstrument.merge(rental.getInstrument().getInstrument_id(), 1, Integer::sum);
+            rentalsPerStudent.merge(rental.getStudent_id(), 1, Integer::sum);
+        }
+        rentalsPerInstrument.forEach((instrument, count) -> {
+            if (count > 1) {
+                violations.add(name + ": instrument " + instrument + " is rented " + count + " times.");
+            }
+        });
+        rentalsPerStudent.forEach((student, count) -> {
+            if (count > MAX_RENTALS_PER_STUDENT) {
+                violations.add(name + ": student " + student + " has " + count + " active rentals.");
+            }
+        });
+        Set<Integer> available = new HashSet<>(idsOf(store.printListAllInstruments(null,
+                Deadline.after(OPERATION_TIMEOUT))));
+        for (Instrument instrument : state.getInstruments()) {
+            int id = instrument.getInstrument_id();
+            boolean rented = rentalsPerInstrument.containsKey(id);
+            if (rented == available.contains(id)) {
+                violations.add(name + ": instrument " + id + " is " + (rented ? "both rented and available."
+                        : "neither rented nor available."));
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * The latencies of the answered operations run against one store, and the
+     * number of operations that were shed or failed.
+     */
+    private static class LoadResult {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+        private final LongAdder[] shed = new LongAdder[Operation.values().length];
+        private final LongAdder[] failed = new LongAdder[Operation.values().length];
+        private long elapsedNanos;
+
+        private LoadResult() {
+            for (Operation operation : Operation.values()) {
+                latencies[operation.ordinal()] = new LatencyHistogram();
+                shed[operation.ordinal()] = new LongAdder();
+                failed[operation.ordinal()] = new LongAdder();
+            }
+        }
+
+        private long shed(Operation operation) {
+            return shed[operation.ordinal()].sum();
+        }
+
+        private long failed(Operation operation) {
+            return failed[operation.ordinal()].sum();
+        }
+
+        private double rate(Operation operation) {
+            return latencies[operation.ordinal()].count() / (elapsedNanos / 1e9);
+        }
+
+        private long percentile(Operation operation, double percentile) {
+            return latencies[operation.ordinal()].percentile(percentile);
+        }
+    }
+}
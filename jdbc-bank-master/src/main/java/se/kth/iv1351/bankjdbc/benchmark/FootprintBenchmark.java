@@ -0,0 +1,108 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import se.kth.iv1351.bankjdbc.integration.AttributeDictionary;
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.InMemorySoundGoodStore;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.startup.DemoCatalog;
+
+/**
+ * Measures how much heap a listing of instruments retains, when the type,
+ * brand and site of each instrument are separate strings, as the JDBC driver
+ * creates them, and when they are mapped through an
+ * <code>AttributeDictionary</code>, as <code>SoundGoodDAO</code> does.
+ *
+ * Each listing is built from a generated catalog by copying every string, like
+ * the driver reads it from a row, and the heap is measured after a full
+ * garbage collection before and after it is built. Run it with e.g.
+ * <code>mvn exec:java -Dexec.mainClass=se.kth.iv1351.bankjdbc.benchmark.FootprintBenchmark
+ * -Dexec.args="--instruments 500000"</code>
+ *
+ * Options, all optional:
+ * <ul>
+ * <li><code>--instruments n</code> the number of instruments listed,
+ * 200000.</li>
+ * </ul>
+ * The results are approximate, run it with a fixed heap, e.g.
+ * <code>-Xms1g -Xmx1g</code>, for stable numbers.
+ */
+public class FootprintBenchmark {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final List<Instrument> catalog;
+
+    private FootprintBenchmark(int instruments) {
+        this.catalog = DemoCatalog.fill(new InMemorySoundGoodStore(), instruments)
+                .readCatalogState(Deadline.after(Duration.ofMinutes(1))).getInstruments();
+    }
+
+    /**
+     * @param args See the class comment.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int instruments = 200_000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--instruments":
+                    instruments = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        FootprintBenchmark benchmark = new FootprintBenchmark(instruments);
+        System.out.println("Listing " + instruments + " instruments");
+        System.out.println(String.format("%-12s %14s %14s", "strings", "retained MB", "bytes/instr"));
+        long separate = benchmark.measure("separate", value -> value);
+        AttributeDictionary dictionary = new AttributeDictionary();
+        long shared = benchmark.measure("dictionary", dictionary::canonical);
+        System.out.println(String.format("The dictionary retains %.1f%% less, with %d distinct values.",
+                100.0 * (separate - shared) / separate, dictionary.size()));
+    }
+
+    /**
+     * Builds a listing of copies of the catalog, passing each copied string
+     * through the specified mapping, and reports the heap it retains.
+     *
+     * @return The retained heap, in bytes.
+     */
+    private long measure(String name, UnaryOperator<String> mapping) throws InterruptedException {
+        long before = usedAfterGc();
+        List<Instrument> listing = new ArrayList<>(catalog.size());
+        for (Instrument instrument : catalog) {
+            listing.add(new Instrument(instrument.getInstrument_id(),
+                    mapping.apply(decoded(instrument.getInstrument_type())),
+                    mapping.apply(decoded(instrument.getInstrument_brand())),
+                    instrument.getInstrument_price(),
+                    mapping.apply(decoded(instrument.getSite()))));
+        }
+        long retained = usedAfterGc() - before;
+        System.out.println(String.format("%-12s %14.1f %14.1f", name, retained / 1e6,
+                (double) retained / listing.size()));
+        return retained;
+    }
+
+    /**
+     * @return A new string with its own bytes, like the driver decodes a value
+     *         of a row.
+     */
+    private static String decoded(String value) {
+        return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    private static long usedAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,75 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies, in nanoseconds, with a relative precision of about 3%,
+ * using constant memory regardless of how many values are recorded. A value is
+ * placed in a bucket given by its highest set bit and the five bits below it,
+ * so each power of two is divided into 32 buckets. Recording is lock free and
+ * may be done from many threads.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    /**
+     * @param nanos The latency to record.
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(nanos, 1)));
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile A percentile between 0 and 100, e.g. 99.9.
+     * @return The latency, in nanoseconds, that the specified percentage of the
+     *         recorded values do not exceed, or 0 if nothing is recorded.
+     */
+    long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(counts.length() - 1);
+    }
+
+    private static int bucketOf(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        if (highestBit < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
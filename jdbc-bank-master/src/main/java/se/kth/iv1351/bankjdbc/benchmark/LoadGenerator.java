@@ -0,0 +1,227 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.integration.InMemorySoundGoodStore;
+import se.kth.iv1351.bankjdbc.integration.OverloadedException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.model.InstrumentException;
+import se.kth.iv1351.bankjdbc.startup.DemoCatalog;
+
+/**
+ * Drives a <code>Controller</code> with a mix of LIST, RENT and END operations
+ * from many concurrent clients, to reproduce semester-start load, and reports
+ * the throughput, the latency percentiles and how many operations were denied
+ * by the rental rules, rejected because of overload, or failed.
+ * 
+ * The instruments that are rented and returned are drawn with a Zipf
+ * distribution, so that a few popular instruments are contended, and the
+ * students are drawn uniformly. Each client runs its operations back to back,
+ * without think time.
+ * 
+ * Run it against the local SoundGood database, or against the in-memory store
+ * as a baseline, e.g.
+ * <code>mvn exec:java -Dexec.mainClass=se.kth.iv1351.bankjdbc.benchmark.LoadGenerator
+ * -Dexec.args="--clients 64 --seconds 30 --mix 70:20:10"</code>
+ * 
+ * Options, all optional:
+ * <ul>
+ * <li><code>--clients n</code> the number of concurrent clients, 16.</li>
+ * <li><code>--seconds n</code> how long to run, 10.</li>
+ * <li><code>--mix list:rent:end</code> the relative frequency of each
+ * operation, 70:20:10.</li>
+ * <li><code>--instruments n</code> the highest instrument id, 1000.</li>
+ * <li><code>--students n</code> the number of students, 10000.</li>
+ * <li><code>--zipf s</code> the skew of the instrument popularity, 1.0.</li>
+ * <li><code>--in-memory</code> use an in-memory store filled with
+ * <code>--instruments</code> generated instruments instead of the
+ * database.</li>
+ * </ul>
+ * On Java 21 and later each client is a virtual thread, on earlier versions a
+ * platform thread.
+ */
+public class LoadGenerator {
+    private enum Operation {
+        LIST, RENT, END
+    }
+
+    private enum Outcome {
+        OK, DENIED, REJECTED, FAILED
+    }
+
+    private final Controller ctrl;
+    private final int clients;
+    private final int seconds;
+    private final int[] mix;
+    private final int students;
+    private final ZipfGenerator instrumentPopularity;
+    private final ZipfGenerator typePopularity;
+    private final List<String> types = DemoCatalog.types();
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[][] outcomes = new LongAdder[Operation.values().length][Outcome.values().length];
+
+    private LoadGenerator(Controller ctrl, int clients, int seconds, int[] mix, int instruments, int students,
+            double zipfExponent) {
+        this.ctrl = ctrl;
+        this.clients = clients;
+        this.seconds = seconds;
+        this.mix = mix;
+        this.students = students;
+        this.instrumentPopularity = new ZipfGenerator(instruments, zipfExponent);
+        this.typePopularity = new ZipfGenerator(types.size(), zipfExponent);
+        for (Operation operation : Operation.values()) {
+            latencies[operation.ordinal()] = new LatencyHistogram();
+            for (Outcome outcome : Outcome.values()) {
+                outcomes[operation.ordinal()][outcome.ordinal()] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * @param args See the class comment.
+     */
+    public static void main(String[] args) throws SoundGoodException, InterruptedException {
+        int clients = 16;
+        int seconds = 10;
+        int[] mix = { 70, 20, 10 };
+        int instruments = 1000;
+        int students = 10_000;
+        double zipf = 1.0;
+        boolean inMemory = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--mix":
+                    String[] parts = args[++i].split(":");
+                    mix = new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                            Integer.parseInt(parts[2]) };
+                    break;
+                case "--instruments":
+                    instruments = Integer.parseInt(args[++i]);
+                    break;
+                case "--students":
+                    students = Integer.parseInt(args[++i]);
+                    break;
+                case "--zipf":
+                    zipf = Double.parseDouble(args[++i]);
+                    break;
+                case "--in-memory":
+                    inMemory = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Controller ctrl = inMemory
+                ? new Controller(DemoCatalog.fill(new InMemorySoundGoodStore(), instruments))
+                : new Controller();
+        LoadGenerator generator = new LoadGenerator(ctrl, clients, seconds, mix, instruments, students, zipf);
+        System.out.println("Running " + clients + " clients for " + seconds + " s against the "
+                + (inMemory ? "in-memory store" : "SoundGood database") + ", mix LIST:RENT:END "
+                + mix[0] + ":" + mix[1] + ":" + mix[2] + ", Zipf exponent " + zipf);
+        long elapsedNanos = generator.run();
+        generator.report(elapsedNanos);
+        System.out.println(ctrl.getStatistics());
+        ctrl.shutdown();
+    }
+
+    private long run() throws InterruptedException {
+        ExecutorService executor = newClientExecutor(clients);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < endNanos) {
+                    runOne(pickOperation());
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        return System.nanoTime() - startNanos;
+    }
+
+    private Operation pickOperation() {
+        int draw = ThreadLocalRandom.current().nextInt(mix[0] + mix[1] + mix[2]);
+        if (draw < mix[0]) {
+            return Operation.LIST;
+        }
+        return draw < mix[0] + mix[1] ? Operation.RENT : Operation.END;
+    }
+
+    private void runOne(Operation operation) {
+        long startNanos = System.nanoTime();
+        Outcome outcome;
+        try {
+            switch (operation) {
+                case LIST:
+                    ctrl.printListInstrument(types.get(typePopularity.next() - 1), null);
+                    outcome = Outcome.OK;
+                    break;
+                case RENT:
+                    String student = Integer.toString(ThreadLocalRandom.current().nextInt(students) + 1);
+                    outcome = ctrl.rentInstrument(student, Integer.toString(instrumentPopularity.next()))
+                            ? Outcome.OK
+                            : Outcome.DENIED;
+                    break;
+                default:
+                    outcome = ctrl.terminateRental(Integer.toString(instrumentPopularity.next()))
+                            ? Outcome.OK
+                            : Outcome.DENIED;
+            }
+        } catch (InstrumentException e) {
+            outcome = e.getCause() instanceof OverloadedException ? Outcome.REJECTED : Outcome.FAILED;
+        }
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        outcomes[operation.ordinal()][outcome.ordinal()].increment();
+    }
+
+    private void report(long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.println(String.format("%-5s %9s %10s %10s %10s %10s %8s %8s %8s",
+                "op", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms", "denied", "rejected", "failed"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            long count = histogram.count();
+            total += count;
+            System.out.println(String.format("%-5s %9d %10.1f %10.3f %10.3f %10.3f %7.2f%% %7.2f%% %7.2f%%",
+                    operation, count, count / elapsedSeconds,
+                    histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                    histogram.percentile(99.9) / 1e6,
+                    percentOf(operation, Outcome.DENIED, count),
+                    percentOf(operation, Outcome.REJECTED, count),
+                    percentOf(operation, Outcome.FAILED, count)));
+        }
+        System.out.println(String.format("Total %d operations in %.1f s, %.1f ops/s", total, elapsedSeconds,
+                total / elapsedSeconds));
+    }
+
+    private double percentOf(Operation operation, Outcome outcome, long count) {
+        return count == 0 ? 0 : 100.0 * outcomes[operation.ordinal()][outcome.ordinal()].sum() / count;
+    }
+
+    /**
+     * Uses a virtual thread per client when the JVM has them, without requiring
+     * Java 21 to build.
+     */
+    static ExecutorService newClientExecutor(int clients) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException noVirtualThreads) {
+            return Executors.newFixedThreadPool(clients);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws numbers from 1 to n with a Zipf distribution, where number k is drawn
+ * with a probability proportional to 1 / k^exponent. With exponent 1 the most
+ * popular instrument is rented twice as often as the second most popular, and
+ * a few percent of the catalog receives most of the traffic, like at semester
+ * start. The cumulative distribution is computed once and searched for each
+ * draw, so drawing is cheap and thread safe.
+ */
+class ZipfGenerator {
+    private final double[] cumulative;
+
+    /**
+     * @param n        The largest number that can be drawn.
+     * @param exponent The skew of the distribution, 0 is uniform.
+     */
+    ZipfGenerator(int n, double exponent) {
+        cumulative = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1 / Math.pow(k, exponent);
+            cumulative[k - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /**
+     * @return A number from 1 to n.
+     */
+    int next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        int index = Arrays.binarySearch(cumulative, u);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return Math.min(index, cumulative.length - 1) + 1;
+    }
+}
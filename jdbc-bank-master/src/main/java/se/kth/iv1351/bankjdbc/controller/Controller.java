@@ -23,15 +23,46 @@
 
 package se.kth.iv1351.bankjdbc.controller;
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 
+import se.kth.iv1351.bankjdbc.integration.CatalogSnapshot;
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.OverloadedException;
+import se.kth.iv1351.bankjdbc.integration.RentalNotFoundException;
+import se.kth.iv1351.bankjdbc.integration.RentalEventSink;
 import se.kth.iv1351.bankjdbc.integration.SoundGoodDAO;
 import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodStore;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.BillingCalculator;
+import se.kth.iv1351.bankjdbc.model.BillingSummary;
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.ExpirySweep;
+import se.kth.iv1351.bankjdbc.model.HealthReport;
 import se.kth.iv1351.bankjdbc.model.Instrument;
 import se.kth.iv1351.bankjdbc.model.InstrumentDTO;
 import se.kth.iv1351.bankjdbc.model.InstrumentException;
+import se.kth.iv1351.bankjdbc.model.InstrumentQuery;
+import se.kth.iv1351.bankjdbc.model.Invoice;
 import se.kth.iv1351.bankjdbc.model.RejectedException;
+import se.kth.iv1351.bankjdbc.model.Rental;
+import se.kth.iv1351.bankjdbc.model.RentalDTO;
+import se.kth.iv1351.bankjdbc.model.SearchResult;
+import se.kth.iv1351.bankjdbc.model.SlowQuery;
+import se.kth.iv1351.bankjdbc.model.TypeAvailability;
 
 /**
  * This is the application's only controller, all calls to the model pass here.
@@ -40,39 +71,250 @@ import se.kth.iv1351.bankjdbc.model.RejectedException;
  * the data, and finally tells the DAO to store the updated data (if any).
  */
 public class Controller {
-    private final SoundGoodDAO soundGood;
+    /**
+     * How long each kind of operation may take, including the time spent waiting
+     * for the database and retrying. Listings scan the whole catalog and get more
+     * time than the single-row rental updates.
+     */
+    private static final Duration LIST_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration RENTAL_TIMEOUT = Duration.ofSeconds(3);
+    private static final Duration BILLING_PAGE_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration SNAPSHOT_TIMEOUT = Duration.ofSeconds(60);
+    /**
+     * The number of students read, billed and stored together in a billing run.
+     */
+    private static final int BILLING_PAGE_SIZE = 2000;
+
+    private final SoundGoodStore soundGood;
+    private final SoundGoodStore background;
+    private final RequestDeduplicator requests = new RequestDeduplicator();
+    private final ExpirySweeper sweeper;
+    private final HealthMonitor health;
+    private OutboxRelay outboxRelay;
 
     /**
-     * Creates a new instance, and retrieves a connection to the database.
+     * Creates a new instance, and retrieves two connections to the database, one
+     * for the interactive operations and one for the background jobs.
      * 
      * @throws SoundGoodException If unable to connect to the database.
      */
     public Controller() throws SoundGoodException {
-        soundGood = new SoundGoodDAO();
+        this(new SoundGoodDAO(), new SoundGoodDAO(SoundGoodDAO.BACKGROUND_QUEUE_MILLIS));
+    }
+
+    /**
+     * Creates a new instance that stores instruments and rentals in the
+     * specified store.
+     * 
+     * @param soundGood The store used for all operations.
+     */
+    public Controller(SoundGoodStore soundGood) {
+        this(soundGood, soundGood);
+    }
+
+    /**
+     * Creates a new instance that runs the background jobs, i.e. the expiry
+     * sweeper, the outbox relay and billing, on a store of their own, so that
+     * they do not hold up the interactive operations. Both stores must hold the
+     * same instruments and rentals, e.g. two connections to the same database.
+     * 
+     * @param soundGood  The store used for the interactive operations.
+     * @param background The store used for the background jobs.
+     */
+    public Controller(SoundGoodStore soundGood, SoundGoodStore background) {
+        this.soundGood = soundGood;
+        this.background = background;
+        this.sweeper = new ExpirySweeper(background);
+        this.health = new HealthMonitor(soundGood);
+    }
+
+    /**
+     * Returns the names of all sites, i.e. the schools where instruments are
+     * kept.
+     * 
+     * @return The sites in alphabetical order.
+     * @throws InstrumentException
+     */
+    public List<String> listSites() throws InstrumentException {
+        try {
+            return soundGood.listSites(Deadline.after(LIST_TIMEOUT));
+        } catch (SoundGoodException e) {
+            throw new InstrumentException("Could not list the sites!", e);
+        }
+    }
+
+    /**
+     * Looks up a site by name, ignoring case.
+     * 
+     * @param site_name The name of the site.
+     * @return The name of the site as it is stored.
+     * @throws InstrumentException If there is no such site.
+     */
+    public String findSite(String site_name) throws InstrumentException {
+        for (String site : listSites()) {
+            if (site.equalsIgnoreCase(site_name)) {
+                return site;
+            }
+        }
+        throw new InstrumentException("There is no site called \"" + site_name + "\".");
     }
 
     /**
      * Returns instruments available for rental
      * 
      * @param instrument_type
+     * @param site            The only site to list, <code>null</code> for all
+     *                        sites.
      * @return
      * @throws InstrumentException
      */
-    public List<? extends InstrumentDTO> printListInstrument(String instrument_type) throws InstrumentException {
+    public List<? extends InstrumentDTO> printListInstrument(String instrument_type, String site)
+            throws InstrumentException {
+        EventLog.Operation op = EventLog.begin("list", "type", instrument_type, "site", site);
         try {
-            return soundGood.printListInstrument(instrument_type);
+            return soundGood.printListInstrument(instrument_type, site, Deadline.after(LIST_TIMEOUT));
         } catch (SoundGoodException e) {
-
+            op.failed(e);
             throw new InstrumentException("Could not list any available instrument!", e);
+        } finally {
+            op.close();
         }
     }
 
-    public List<? extends InstrumentDTO> printListAllInstruments() throws InstrumentException {
+    /**
+     * Returns the number of available instruments of each type, with the
+     * cheapest of each, for an overview of the whole catalog in one round trip.
+     * 
+     * @param top_n The number of cheapest instruments of each type, 3 if
+     *              <code>null</code>.
+     * @param site  The only site to count, <code>null</code> for all sites.
+     * @return One entry per type, the type with the most available first.
+     * @throws InstrumentException
+     */
+    public List<TypeAvailability> listAvailabilityByType(String top_n, String site) throws InstrumentException {
+        int top = 3;
+        if (top_n != null) {
+            try {
+                top = Integer.parseInt(top_n);
+            } catch (NumberFormatException e) {
+                throw new InstrumentException("\"" + top_n + "\" is not a number of instruments.", e);
+            }
+            if (top < 1) {
+                throw new InstrumentException("At least one instrument of each type must be listed.");
+            }
+        }
+        EventLog.Operation op = EventLog.begin("overview", "top", top, "site", site);
         try {
-            return soundGood.printListAllInstruments();
+            return soundGood.countAvailableByType(site, top, Deadline.after(LIST_TIMEOUT));
         } catch (SoundGoodException e) {
+            op.failed(e);
+            throw new InstrumentException("Could not count the available instruments!", e);
+        } finally {
+            op.close();
+        }
+    }
 
+    public List<? extends InstrumentDTO> printListAllInstruments(String site) throws InstrumentException {
+        EventLog.Operation op = EventLog.begin("listall", "site", site);
+        try {
+            return soundGood.printListAllInstruments(site, Deadline.after(LIST_TIMEOUT));
+        } catch (SoundGoodException e) {
+            op.failed(e);
             throw new InstrumentException("Could not list any available instruments!", e);
+        } finally {
+            op.close();
+        }
+    }
+
+    /**
+     * Returns the instruments of a type that can be booked for a period in the
+     * future, i.e. that are not rented any day of the period.
+     * 
+     * @param instrument_type
+     * @param from_date       The first day of the period, as yyyy-mm-dd.
+     * @param to_date         The day the instrument would be returned, as
+     *                        yyyy-mm-dd. It is not part of the period.
+     * @param site            The only site to list, <code>null</code> for all
+     *                        sites.
+     * @return The instruments that are free during the whole period.
+     * @throws InstrumentException
+     */
+    public List<? extends InstrumentDTO> findAvailable(String instrument_type, String from_date, String to_date,
+            String site) throws InstrumentException {
+        LocalDate from;
+        LocalDate to;
+        if (from_date == null || to_date == null) {
+            throw new InstrumentException("The period must be given as two dates on the form yyyy-mm-dd.");
+        }
+        try {
+            from = LocalDate.parse(from_date);
+            to = LocalDate.parse(to_date);
+        } catch (DateTimeParseException e) {
+            throw new InstrumentException("The period must be given as two dates on the form yyyy-mm-dd.", e);
+        }
+        if (from.isBefore(LocalDate.now()) || !to.isAfter(from)) {
+            throw new InstrumentException("The period " + from + " - " + to
+                    + " must not start in the past, and must end after it starts.");
+        }
+        EventLog.Operation op = EventLog.begin("available", "type", instrument_type, "from", from, "to", to,
+                "site", site);
+        try {
+            return soundGood.findAvailable(instrument_type, site, from, to, Deadline.after(LIST_TIMEOUT));
+        } catch (SoundGoodException e) {
+            op.failed(e);
+            throw new InstrumentException("Could not list any available instrument!", e);
+        } finally {
+            op.close();
+        }
+    }
+
+    /**
+     * Searches the available instruments by type and brand. The text may be
+     * misspelled or just the beginning of a word, "yam pia" finds Yamaha pianos.
+     * 
+     * @param text        The words to search for.
+     * @param price_range The allowed prices, as "min-max", "min-" or "-max", or
+     *                    <code>null</code> for any price.
+     * @param site        The only site to search, <code>null</code> for all
+     *                    sites.
+     * @return The best matching instruments and the number of matches per type
+     *         and brand.
+     * @throws InstrumentException
+     */
+    public SearchResult searchInstruments(String text, String price_range, String site)
+            throws InstrumentException {
+        int minPrice = 0;
+        int maxPrice = Integer.MAX_VALUE;
+        if (price_range != null) {
+            String[] limits = price_range.split("-", -1);
+            if (limits.length != 2) {
+                throw new InstrumentException("Price range \"" + price_range + "\" is not on the form min-max.");
+            }
+            try {
+                if (!limits[0].isEmpty()) {
+                    minPrice = Integer.parseInt(limits[0]);
+                }
+                if (!limits[1].isEmpty()) {
+                    maxPrice = Integer.parseInt(limits[1]);
+                }
+            } catch (NumberFormatException e) {
+                throw new InstrumentException("Price range \"" + price_range + "\" is not on the form min-max.", e);
+            }
+            if (minPrice > maxPrice) {
+                throw new InstrumentException("The lowest price of \"" + price_range
+                        + "\" is higher than the highest.");
+            }
+        }
+        InstrumentQuery query = new InstrumentQuery(text, minPrice, maxPrice, InstrumentQuery.DEFAULT_LIMIT, site);
+        EventLog.Operation op = EventLog.begin("search", "text", text, "min", minPrice, "max", maxPrice,
+                "site", site);
+        try {
+            return soundGood.searchInstruments(query, Deadline.after(LIST_TIMEOUT));
+        } catch (SoundGoodException e) {
+            op.failed(e);
+            throw new InstrumentException("Could not search for instruments!", e);
+        } finally {
+            op.close();
         }
     }
 
@@ -84,27 +326,52 @@ public class Controller {
      * 
      * @param instrument_id
      * @param student_id
+     * @return <code>true</code> if the rental was granted, <code>false</code> if
+     *         the student has reached the rental limit or the instrument is
+     *         already rented.
      * @throws InstrumentException
      */
-    public void rentInstrument(String student_id, String instrument_id) throws InstrumentException {
+    public boolean rentInstrument(String student_id, String instrument_id) throws InstrumentException {
+        return rentInstrument(student_id, instrument_id, null);
+    }
+
+    /**
+     * Requests rental of instrument by a student, like
+     * <code>rentInstrument(student_id, instrument_id)</code>. If a request with
+     * the same request id has already been made, the rental is not requested
+     * again, instead the outcome of the earlier request is returned. This way a
+     * client that timed out can safely retry.
+     * 
+     * @param student_id
+     * @param instrument_id
+     * @param request_id    An id chosen by the client, unique for each rental it
+     *                      requests, or <code>null</code>.
+     * @return <code>true</code> if the rental was granted, <code>false</code> if
+     *         the student has reached the rental limit or the instrument is
+     *         already rented.
+     * @throws InstrumentException
+     */
+    public boolean rentInstrument(String student_id, String instrument_id, String request_id)
+            throws InstrumentException {
         int instrument = Integer.parseInt(instrument_id);
         int student = Integer.parseInt(student_id);
+        return requests.perform(request_id, "RENT " + student + " " + instrument,
+                () -> rentInstrument(student, instrument));
+    }
+
+    private boolean rentInstrument(int student, int instrument) throws InstrumentException {
+        EventLog.Operation op = EventLog.begin("rent", "student_id", student, "instrument_id", instrument);
         try {
-            if ((soundGood.checkStudentRental(student) < 2)
-                    && (soundGood.checkInstrumentRental(instrument) == 1)) {
-                soundGood.rentInstrument(student, instrument);
-                System.out.println("The requested rental has been logged.");
-            } else {
-                System.out.println("Requested rental has been denied. \n The student with id \"" + student_id
-                        + "\" has reached rental limit OR the instrument with id \"" + instrument_id
-                        + "\" is already rented.");
-            }
+            return soundGood.rentInstrument(student, instrument, Deadline.after(RENTAL_TIMEOUT));
+        } catch (OverloadedException e) {
+            op.failed(e);
+            throw new InstrumentException(e.getMessage(), e);
         } catch (SoundGoodException e) {
-            System.out.println(
-                    "Couldn't create rental of instrument with id \"" + instrument + "\" by student with id \""
-                            + student
-                            + "\" because student has either reached rental limit or the instrument is rented out.");
-            // throw new InstrumentException(failureMsg, e);
+            op.failed(e);
+            throw new InstrumentException("Couldn't create rental of instrument with id \"" + instrument
+                    + "\" by student with id \"" + student + "\" because the database request failed.", e);
+        } finally {
+            op.close();
         }
     }
 
@@ -113,17 +380,275 @@ public class Controller {
      * "current_date".
      * 
      * @param instrument_id
+     * @return <code>true</code> if the rental was terminated, <code>false</code>
+     *         if the instrument is not rented out.
      * @throws InstrumentException
      */
-    public void terminateRental(String instrument_id) throws InstrumentException {
+    public boolean terminateRental(String instrument_id) throws InstrumentException {
+        return terminateRental(instrument_id, null);
+    }
+
+    /**
+     * Terminates the rental, like <code>terminateRental(instrument_id)</code>. If
+     * a request with the same request id has already been made, the outcome of
+     * that request is returned instead.
+     * 
+     * @param instrument_id
+     * @param request_id    An id chosen by the client, unique for each
+     *                      termination it requests, or <code>null</code>.
+     * @return <code>true</code> if the rental was terminated, <code>false</code>
+     *         if the instrument is not rented out.
+     * @throws InstrumentException
+     */
+    public boolean terminateRental(String instrument_id, String request_id) throws InstrumentException {
         int instrument = Integer.parseInt(instrument_id);
+        return requests.perform(request_id, "END " + instrument, () -> terminateRental(instrument));
+    }
+
+    private boolean terminateRental(int instrument) throws InstrumentException {
+        EventLog.Operation op = EventLog.begin("end", "instrument_id", instrument);
+        try {
+            soundGood.terminateRental(instrument, Deadline.after(RENTAL_TIMEOUT));
+            return true;
+        } catch (RentalNotFoundException e) {
+            return false;
+        } catch (OverloadedException e) {
+            op.failed(e);
+            throw new InstrumentException(e.getMessage(), e);
+        } catch (SoundGoodException e) {
+            op.failed(e);
+            throw new InstrumentException("Couldn't remove rental of instrument with id " + instrument
+                    + " because the database request failed.", e);
+        } finally {
+            op.close();
+        }
+    }
+
+    /**
+     * Returns all rentals of a student, both active and past, with details about
+     * the rented instruments.
+     * 
+     * @param student_id
+     * @return The student's rentals, the latest ending first.
+     * @throws InstrumentException
+     */
+    public List<? extends RentalDTO> listStudentRentals(String student_id) throws InstrumentException {
+        int student = Integer.parseInt(student_id);
+        EventLog.Operation op = EventLog.begin("rentals", "student_id", student);
         try {
-            soundGood.terminateRental(instrument);
-            System.out.println("Rental of instrument with the id " + instrument_id + " has been terminated");
+            return soundGood.findRentalsByStudent(student, Deadline.after(LIST_TIMEOUT));
         } catch (SoundGoodException e) {
-            System.out.println("Couldn't remove rental of instrument with id " + instrument_id
-                    + " because it hasn't been rented out.");
-            // throw new InstrumentException(failureMsg, e);
+            op.failed(e);
+            throw new InstrumentException("Could not list the rentals of student with id \"" + student_id + "\".", e);
+        } finally {
+            op.close();
+        }
+    }
+
+    /**
+     * Bills all students for their rentals during the specified month. The
+     * students are read in pages of <code>BILLING_PAGE_SIZE</code>, ordered by
+     * id. While the invoices of one page are computed in parallel, in the common
+     * fork-join pool, the next page is read from the store, and when they are
+     * done they are stored in one batch. Running the billing of a month again
+     * replaces its invoices.
+     * 
+     * @param billing_month The month to bill, as yyyy-mm.
+     * @return The number of invoices and their total amount.
+     * @throws InstrumentException
+     */
+    public BillingSummary runBilling(String billing_month) throws InstrumentException {
+        YearMonth month;
+        try {
+            month = YearMonth.parse(billing_month);
+        } catch (DateTimeParseException e) {
+            throw new InstrumentException("Billing month \"" + billing_month + "\" is not on the form yyyy-mm.", e);
+        }
+        long startNanos = System.nanoTime();
+        int invoiceCount = 0;
+        long total = 0;
+        EventLog.Operation op = EventLog.begin("bill", "month", month);
+        try {
+            List<Rental> page = background.findRentalsForBilling(month, 0, BILLING_PAGE_SIZE,
+                    Deadline.after(BILLING_PAGE_TIMEOUT));
+            while (!page.isEmpty()) {
+                List<Rental> billedPage = page;
+                CompletableFuture<List<Invoice>> invoicing = CompletableFuture
+                        .supplyAsync(() -> computeInvoices(month, billedPage));
+                int lastStudent = page.get(page.size() - 1).getStudent_id();
+                page = background.findRentalsForBilling(month, lastStudent, BILLING_PAGE_SIZE,
+                        Deadline.after(BILLING_PAGE_TIMEOUT));
+                List<Invoice> invoices = invoicing.join();
+                background.storeInvoices(invoices, Deadline.after(BILLING_PAGE_TIMEOUT));
+                invoiceCount += invoices.size();
+                total += invoices.stream().mapToLong(Invoice::getTotal).sum();
+            }
+            EventLog.info("billing.completed", "month", month, "invoices", invoiceCount, "total", total,
+                    "millis", (System.nanoTime() - startNanos) / 1_000_000);
+        } catch (SoundGoodException | CompletionException e) {
+            op.failed(e);
+            throw new InstrumentException("Billing of " + month + " failed after " + invoiceCount
+                    + " invoices, run it again to complete it.", e);
+        } finally {
+            op.close();
+        }
+        return new BillingSummary(month, invoiceCount, total,
+                Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+
+    private static List<Invoice> computeInvoices(YearMonth month, List<Rental> rentals) {
+        Map<Integer, List<Rental>> rentalsByStudent = rentals.stream()
+                .collect(Collectors.groupingBy(Rental::getStudent_id, TreeMap::new, Collectors.toList()));
+        return rentalsByStudent.entrySet().parallelStream()
+                .map(entry -> BillingCalculator.bill(entry.getKey(), month, entry.getValue()))
+                .filter(invoice -> invoice != null)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the counters of the store, and of the store of the background jobs
+     * if they have one of their own. For the database these are the
+     * transaction retry policy, i.e. how many transactions have been run and how
+     * many of them had to be retried because of serialization failures,
+     * deadlocks or lost connections, the operation limiter, i.e. how many
+     * operations were rejected because the database was overloaded, the
+     * per-student rental cache and the instrument list cache, and how many
+     * retried requests were answered with an earlier outcome.
+     * 
+     * @return A printable summary of the counters.
+     */
+    public String getStatistics() {
+        return soundGood.getStatistics() + "\n"
+                + (background == soundGood ? "" : "Background jobs:\n" + background.getStatistics() + "\n")
+                + requests + "\n" + sweeper + "\n"
+                + (outboxRelay == null ? "Outbox relay: off" : outboxRelay) + "\n" + health;
+    }
+
+    /**
+     * Shuts down the health monitor, the expiry sweeper, the outbox relay and the
+     * stores, waiting for running operations to finish and delivering the
+     * remaining rental events. No operation can be performed after this.
+     */
+    public void shutdown() {
+        health.stop();
+        sweeper.stop();
+        synchronized (this) {
+            if (outboxRelay != null) {
+                outboxRelay.stop();
+            }
+        }
+        if (background != soundGood) {
+            background.close();
+        }
+        soundGood.close();
+    }
+
+    /**
+     * Starts probing the store in the background, see <code>HealthMonitor</code>.
+     */
+    public void startHealthMonitor() {
+        health.start();
+    }
+
+    /**
+     * Returns whether the application is ready to serve, based on the latest
+     * probe of the store and the recent error rate. Does not access the store.
+     * 
+     * @return The readiness and the measurements it is based on.
+     */
+    public HealthReport getHealth() {
+        return health.report();
+    }
+
+    /**
+     * Starts sweeping the expiring and expired rentals in the background, see
+     * <code>ExpirySweeper</code>.
+     */
+    public void startExpirySweeper() {
+        sweeper.start();
+    }
+
+    /**
+     * Starts delivering the rental events in the outbox to the specified sink,
+     * see <code>OutboxRelay</code>. Calling it again has no effect.
+     * 
+     * @param sink Where the events are delivered. Closed when the controller is
+     *             shut down.
+     */
+    public synchronized void startOutboxRelay(RentalEventSink sink) {
+        if (outboxRelay == null) {
+            outboxRelay = new OutboxRelay(background, sink);
+        }
+    }
+
+    /**
+     * Sweeps the expiring and expired rentals now, reminding the students whose
+     * rentals expire soon and closing the rentals that have expired.
+     * 
+     * @return The number of reminders and closed rentals.
+     * @throws InstrumentException If the rentals could not be swept.
+     */
+    public ExpirySweep sweepExpiringRentals() throws InstrumentException {
+        try {
+            return sweeper.sweep();
+        } catch (SoundGoodException e) {
+            throw new InstrumentException("Could not sweep the expiring rentals.", e);
+        }
+    }
+
+    /**
+     * Changes the slow statement profiling, if a threshold is specified, and
+     * returns the slowest statements captured so far.
+     * 
+     * @param threshold_millis Statements slower than this many milliseconds are
+     *                         captured, <code>off</code> stops the capturing and
+     *                         <code>null</code> leaves it as it is.
+     * @return The slowest statements with their plans, the slowest first.
+     * @throws InstrumentException If the threshold is not a number.
+     */
+    public List<SlowQuery> profileSlowQueries(String threshold_millis) throws InstrumentException {
+        if (threshold_millis != null) {
+            if (threshold_millis.equalsIgnoreCase("off")) {
+                soundGood.profileSlowQueries(null);
+            } else {
+                try {
+                    soundGood.profileSlowQueries(Duration.ofMillis(Long.parseUnsignedLong(threshold_millis)));
+                } catch (NumberFormatException e) {
+                    throw new InstrumentException("Profiling threshold \"" + threshold_millis
+                            + "\" is not a number of milliseconds.", e);
+                }
+            }
+        }
+        return soundGood.getSlowQueries();
+    }
+
+    /**
+     * Writes all instruments and active rentals to a snapshot file, from which
+     * the caches can be filled when the application is restarted, see
+     * <code>CatalogSnapshot</code> and <code>WarmStart</code>.
+     * 
+     * @param file The file to write the snapshot to.
+     * @return What was written to the snapshot.
+     * @throws InstrumentException If the catalog could not be read or written.
+     */
+    public CatalogState exportSnapshot(String file) throws InstrumentException {
+        if (file == null || file.isEmpty()) {
+            throw new InstrumentException("Type the file to write the snapshot to.");
+        }
+        long startNanos = System.nanoTime();
+        EventLog.Operation op = EventLog.begin("snapshot", "file", file);
+        try {
+            CatalogState state = soundGood.readCatalogState(Deadline.after(SNAPSHOT_TIMEOUT));
+            long bytes = CatalogSnapshot.write(Path.of(file), state);
+            EventLog.info("snapshot.written", "instruments", state.getInstruments().size(),
+                    "rentals", state.getActive_rentals().size(), "bytes", bytes,
+                    "millis", (System.nanoTime() - startNanos) / 1_000_000);
+            return state;
+        } catch (SoundGoodException | IOException | InvalidPathException e) {
+            op.failed(e);
+            throw new InstrumentException("Could not write a snapshot to \"" + file + "\".", e);
+        } finally {
+            op.close();
         }
     }
 
@@ -142,7 +667,7 @@ public class Controller {
             return new ArrayList<>();
         }
         try {
-            return soundGood.printListInstrument(instrument);
+            return soundGood.printListInstrument(instrument, null, Deadline.after(LIST_TIMEOUT));
         } catch (Exception e) {
             throw new InstrumentException("Could not search for account.", e);
         }
@@ -0,0 +1,142 @@
+package se.kth.iv1351.bankjdbc.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodStore;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.ExpirySweep;
+
+/**
+ * Sweeps the expiring and expired rentals in the background, see
+ * <code>SoundGoodStore.sweepExpiringRentals()</code>. A sweep marks the
+ * rentals in batches of <code>BATCH_SIZE</code>, each in its own transaction,
+ * so that rentals and listings are not held up behind one long transaction.
+ *
+ * The sweep runs every <code>soundgood.sweep.intervalMinutes</code>, once a day
+ * by default, starting shortly after the application has started. 0 turns the
+ * scheduled sweeps off, the <code>SWEEP</code> command still runs one.
+ */
+class ExpirySweeper {
+    private static final int REMINDER_DAYS = 14;
+    private static final int BATCH_SIZE = 500;
+    private static final Duration BATCH_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration FIRST_SWEEP_DELAY = Duration.ofSeconds(30);
+    private static final long INTERVAL_MINUTES = Long.getLong("soundgood.sweep.intervalMinutes",
+            TimeUnit.DAYS.toMinutes(1));
+
+    private final SoundGoodStore soundGood;
+    private final Object sweeping = new Object();
+    private ScheduledExecutorService scheduler;
+    private volatile boolean stopped;
+
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong expiring = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Instant lastSweep;
+
+    /**
+     * @param soundGood The store whose rentals are swept.
+     */
+    ExpirySweeper(SoundGoodStore soundGood) {
+        this.soundGood = soundGood;
+    }
+
+    /**
+     * Schedules the sweeps. Calling it more than once has no effect.
+     */
+    synchronized void start() {
+        if (scheduler != null || stopped || INTERVAL_MINUTES <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, FIRST_SWEEP_DELAY.toSeconds(),
+                TimeUnit.MINUTES.toSeconds(INTERVAL_MINUTES), TimeUnit.SECONDS);
+        EventLog.info("sweep.scheduled", "intervalMinutes", INTERVAL_MINUTES);
+    }
+
+    /**
+     * Sweeps all expiring and expired rentals now, batch by batch, until a batch
+     * is not full or the sweeper is stopped. Only one sweep runs at a time.
+     *
+     * @return The sum of the batches.
+     * @throws SoundGoodException If a batch failed. The batches before it are
+     *                            kept, the next sweep continues where it failed.
+     */
+    ExpirySweep sweep() throws SoundGoodException {
+        synchronized (sweeping) {
+            long startNanos = System.nanoTime();
+            ExpirySweep total = ExpirySweep.NONE;
+            int batches = 0;
+            try {
+                ExpirySweep batch;
+                do {
+                    batch = soundGood.sweepExpiringRentals(REMINDER_DAYS, BATCH_SIZE,
+                            Deadline.after(BATCH_TIMEOUT));
+                    total = total.plus(batch);
+                    batches++;
+                } while (batch.getSwept() == BATCH_SIZE && !stopped);
+            } finally {
+                sweeps.incrementAndGet();
+                expiring.addAndGet(total.getExpiring());
+                expired.addAndGet(total.getExpired());
+                lastSweep = Instant.now();
+            }
+            EventLog.info("sweep.completed", "batches", batches, "swept", total.getSwept(),
+                    "expiring", total.getExpiring(), "expired", total.getExpired(),
+                    "millis", (System.nanoTime() - startNanos) / 1_000_000);
+            return total;
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (SoundGoodException | RuntimeException e) {
+            failed.incrementAndGet();
+            EventLog.error("sweep.failed", e);
+        }
+    }
+
+    /**
+     * Stops the scheduled sweeps, and waits a while for a running sweep to
+     * finish its batch.
+     */
+    void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            stopped = true;
+            running = scheduler;
+        }
+        if (running == null) {
+            return;
+        }
+        running.shutdown();
+        try {
+            running.awaitTermination(BATCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A string representation of the counters of this sweeper.
+     */
+    @Override
+    public String toString() {
+        return "Expiry sweeps: " + sweeps.get() + " (failed: " + failed.get() + ")"
+                + " | Expiring reminded: " + expiring.get() + " | Expired closed: " + expired.get()
+                + " | Last sweep: " + (lastSweep == null ? "never" : lastSweep);
+    }
+}
@@ -0,0 +1,160 @@
+package se.kth.iv1351.bankjdbc.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodStore;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.HealthReport;
+import se.kth.iv1351.bankjdbc.model.StoreHealth;
+
+/**
+ * Probes the store in the background, see <code>SoundGoodStore.probe()</code>,
+ * and decides if the application is ready to serve. It is ready when the last
+ * probe succeeded recently and took at most
+ * <code>soundgood.health.slowProbeMillis</code>, 500 ms by default, and at most
+ * half of the operations during the last <code>WINDOW</code> probes failed or
+ * were rejected.
+ *
+ * The store is probed every <code>soundgood.health.probeSeconds</code>, 5 s by
+ * default. Once stopped, the application is never ready again, so that traffic
+ * is routed away while the store shuts down.
+ */
+class HealthMonitor {
+    private static final long PROBE_SECONDS = Long.getLong("soundgood.health.probeSeconds", 5);
+    private static final long SLOW_PROBE_MILLIS = Long.getLong("soundgood.health.slowProbeMillis", 500);
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(2);
+    private static final double MAX_ERROR_RATE = 0.5;
+    private static final int WINDOW = 12;
+
+    private final SoundGoodStore soundGood;
+    private final ArrayDeque<StoreHealth> samples = new ArrayDeque<>();
+    private ScheduledExecutorService scheduler;
+    private volatile boolean stopped;
+
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong failedProbes = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile Instant lastProbe;
+    private volatile Instant lastSuccess;
+    private volatile long probeMillis = -1;
+    private volatile String lastFailure;
+
+    /**
+     * @param soundGood The store that is probed.
+     */
+    HealthMonitor(SoundGoodStore soundGood) {
+        this.soundGood = soundGood;
+    }
+
+    /**
+     * Schedules the probes, the first one immediately. Calling it more than once
+     * has no effect.
+     */
+    synchronized void start() {
+        if (scheduler != null || stopped) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "health-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::probe, 0, PROBE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Probes the store once, and samples its counters for the error rate.
+     */
+    private void probe() {
+        long startNanos = System.nanoTime();
+        try {
+            soundGood.probe(Deadline.after(PROBE_TIMEOUT));
+            lastSuccess = Instant.now();
+            lastFailure = null;
+            consecutiveFailures.set(0);
+        } catch (SoundGoodException | RuntimeException e) {
+            lastFailure = e.getMessage();
+            failedProbes.incrementAndGet();
+            if (consecutiveFailures.incrementAndGet() == 1) {
+                EventLog.warn("health.probe.failed", "message", e.getMessage());
+            }
+        }
+        probeMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        lastProbe = Instant.now();
+        probes.incrementAndGet();
+        synchronized (samples) {
+            samples.addLast(soundGood.getHealth());
+            if (samples.size() > WINDOW) {
+                samples.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * @return If the application is ready, and why not.
+     */
+    HealthReport report() {
+        StoreHealth now = soundGood.getHealth();
+        double errorRate;
+        synchronized (samples) {
+            errorRate = samples.isEmpty() ? 0 : now.errorRateSince(samples.peekFirst());
+        }
+        Instant probed = lastProbe;
+        long millis = probeMillis;
+        int failures = consecutiveFailures.get();
+        String reason = null;
+        if (stopped) {
+            reason = "Shutting down.";
+        } else if (lastSuccess == null) {
+            reason = failures == 0 ? "The store has not been probed yet." : "No probe has succeeded, " + lastFailure;
+        } else if (failures > 0) {
+            reason = failures + " probes in a row failed, " + lastFailure;
+        } else if (probed.isBefore(Instant.now().minusSeconds(3 * PROBE_SECONDS + PROBE_TIMEOUT.toSeconds()))) {
+            reason = "The last probe was at " + probed + ".";
+        } else if (millis > SLOW_PROBE_MILLIS) {
+            reason = "The last probe took " + millis + " ms.";
+        } else if (errorRate > MAX_ERROR_RATE) {
+            reason = String.format("%.0f%% of the recent operations failed.", 100 * errorRate);
+        }
+        return new HealthReport(reason == null, reason, probed, millis, failures, errorRate, now);
+    }
+
+    /**
+     * Stops the probes, and waits for a running probe to finish, so that it is
+     * done before the store is closed. From now on the application is not ready.
+     */
+    void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            stopped = true;
+            running = scheduler;
+        }
+        if (running == null) {
+            return;
+        }
+        running.shutdown();
+        try {
+            running.awaitTermination(PROBE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A string representation of the counters of this monitor.
+     */
+    @Override
+    public String toString() {
+        return "Health probes: " + probes.get() + " (failed: " + failedProbes.get() + ")"
+                + " | Last probe: " + (lastProbe == null ? "never" : probeMillis + " ms at " + lastProbe);
+    }
+}
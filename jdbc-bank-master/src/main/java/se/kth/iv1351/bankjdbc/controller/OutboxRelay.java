@@ -0,0 +1,130 @@
+package se.kth.iv1351.bankjdbc.controller;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.RentalEventSink;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodStore;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+
+/**
+ * Delivers the rental events in the outbox to a sink, see
+ * <code>SoundGoodStore.readRentalEvents()</code>. The outbox is polled every
+ * <code>POLL_INTERVAL</code>, and drained in batches of
+ * <code>BATCH_SIZE</code>. A batch is delivered first and removed from the
+ * outbox after, so no event is lost if the relay stops halfway, but an event
+ * may be delivered twice. A batch that could not be delivered stays in the
+ * outbox and is delivered at the next poll.
+ */
+class OutboxRelay {
+    private static final int BATCH_SIZE = 1000;
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration BATCH_TIMEOUT = Duration.ofSeconds(10);
+
+    private final SoundGoodStore soundGood;
+    private final RentalEventSink sink;
+    private final Object relaying = new Object();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Instant lastDelivery;
+
+    /**
+     * Creates a relay and starts polling the outbox.
+     *
+     * @param soundGood The store with the outbox.
+     * @param sink      Where the events are delivered.
+     */
+    OutboxRelay(SoundGoodStore soundGood, RentalEventSink sink) {
+        this.soundGood = soundGood;
+        this.sink = sink;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::relayQuietly, 0, POLL_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers the events in the outbox, batch by batch, until a batch is not
+     * full. Only one relay runs at a time.
+     *
+     * @return The number of events delivered.
+     * @throws SoundGoodException If the outbox could not be read or emptied.
+     * @throws IOException        If the sink could not deliver a batch.
+     */
+    int relay() throws SoundGoodException, IOException {
+        synchronized (relaying) {
+            long startNanos = System.nanoTime();
+            int relayed = 0;
+            List<RentalEvent> batch;
+            do {
+                batch = soundGood.readRentalEvents(BATCH_SIZE, Deadline.after(BATCH_TIMEOUT));
+                if (batch.isEmpty()) {
+                    break;
+                }
+                sink.publish(batch);
+                soundGood.acknowledgeRentalEvents(batch, Deadline.after(BATCH_TIMEOUT));
+                relayed += batch.size();
+                delivered.addAndGet(batch.size());
+                batches.incrementAndGet();
+                lastDelivery = Instant.now();
+            } while (batch.size() == BATCH_SIZE);
+            if (relayed > 0) {
+                EventLog.info("outbox.relayed", "events", relayed,
+                        "millis", (System.nanoTime() - startNanos) / 1_000_000);
+            }
+            return relayed;
+        }
+    }
+
+    private void relayQuietly() {
+        try {
+            relay();
+        } catch (SoundGoodException | IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            EventLog.error("outbox.failed", e);
+        }
+    }
+
+    /**
+     * Stops polling, delivers the events still in the outbox, and closes the
+     * sink. Must be called before the store is closed.
+     */
+    void stop() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(BATCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        relayQuietly();
+        try {
+            sink.close();
+        } catch (IOException e) {
+            EventLog.error("outbox.failed", e);
+        }
+    }
+
+    /**
+     * @return A string representation of the counters of this relay.
+     */
+    @Override
+    public String toString() {
+        return "Outbox relay: " + delivered.get() + " events in " + batches.get() + " batches"
+                + " | Failed polls: " + failed.get()
+                + " | Last delivery: " + (lastDelivery == null ? "never" : lastDelivery);
+    }
+}
@@ -0,0 +1,136 @@
+package se.kth.iv1351.bankjdbc.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.bankjdbc.model.InstrumentException;
+
+/**
+ * Makes requests idempotent. A client that does not know if its request was
+ * performed, e.g. because it timed out, sends it again with the same request
+ * id, and gets the outcome of the original request instead of performing it a
+ * second time. A retry that arrives while the original is still running waits
+ * for it. A request that failed is forgotten, so that its retry is performed.
+ * 
+ * The outcomes of the <code>MAX_REQUESTS</code> latest requests are kept, for
+ * at most <code>RETENTION_NANOS</code>.
+ */
+class RequestDeduplicator {
+    private static final int MAX_REQUESTS = 100_000;
+    private static final long RETENTION_NANOS = TimeUnit.MINUTES.toNanos(15);
+
+    /**
+     * A request that may be deduplicated.
+     */
+    interface Request {
+        boolean perform() throws InstrumentException;
+    }
+
+    private static final class Outcome {
+        private final String fingerprint;
+        private final long createdNanos = System.nanoTime();
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Outcome(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - createdNanos > RETENTION_NANOS;
+        }
+    }
+
+    private final Map<String, Outcome> outcomes = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+            return size() > MAX_REQUESTS || eldest.getValue().isExpired();
+        }
+    };
+    private final AtomicLong performed = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    /**
+     * Performs the request, unless a request with the same id has already been
+     * performed.
+     *
+     * @param request_id  The id chosen by the client, or <code>null</code> if the
+     *                    request shall not be deduplicated.
+     * @param fingerprint The operation and parameters of the request. A request
+     *                    id may not be reused for another request.
+     * @param request     Performs the request.
+     * @return The outcome of the request, or of the original request if this is a
+     *         retry.
+     * @throws InstrumentException If the request, or the original request that
+     *                             this retry waited for, failed, or the request
+     *                             id was used for another request.
+     */
+    boolean perform(String request_id, String fingerprint, Request request) throws InstrumentException {
+        if (request_id == null) {
+            return request.perform();
+        }
+        Outcome outcome;
+        boolean original;
+        synchronized (outcomes) {
+            outcome = outcomes.get(request_id);
+            if (outcome != null && outcome.isExpired()) {
+                outcomes.remove(request_id);
+                outcome = null;
+            }
+            original = outcome == null;
+            if (original) {
+                outcome = new Outcome(fingerprint);
+                outcomes.put(request_id, outcome);
+            }
+        }
+        if (!original) {
+            if (!outcome.fingerprint.equals(fingerprint)) {
+                throw new InstrumentException("Request id \"" + request_id
+                        + "\" has already been used for another request.");
+            }
+            replayed.incrementAndGet();
+            return awaitOriginal(request_id, outcome);
+        }
+        performed.incrementAndGet();
+        try {
+            boolean result = request.perform();
+            outcome.result.complete(result);
+            return result;
+        } catch (InstrumentException | RuntimeException e) {
+            synchronized (outcomes) {
+                outcomes.remove(request_id, outcome);
+            }
+            outcome.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private boolean awaitOriginal(String request_id, Outcome outcome) throws InstrumentException {
+        try {
+            return outcome.result.get();
+        } catch (ExecutionException e) {
+            throw new InstrumentException("The original request with id \"" + request_id + "\" failed: "
+                    + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InstrumentException("Interrupted while waiting for the original request with id \""
+                    + request_id + "\".", e);
+        }
+    }
+
+    /**
+     * @return A string representation of the counters of this deduplicator.
+     */
+    @Override
+    public String toString() {
+        int remembered;
+        synchronized (outcomes) {
+            remembered = outcomes.size();
+        }
+        return "Idempotent requests: " + performed.get() + " performed | " + replayed.get()
+                + " retries answered from earlier outcome | " + remembered + " remembered";
+    }
+}
@@ -0,0 +1,77 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Canonicalizes the strings of the few distinct values of an instrument
+ * attribute, like its type, brand or site. The JDBC driver creates a new
+ * string for every row read, so a listing of thousands of pianos holds
+ * thousands of copies of "Piano". Mapping each value through the dictionary
+ * makes all instruments share one copy, and the copies the driver created
+ * die young.
+ *
+ * The dictionary keeps at most <code>maxValues</code> values. Values read
+ * after that are returned as they are, so that a column with many distinct
+ * values can not make it grow without bound. Unlike
+ * <code>String.intern()</code> the values are kept in an ordinary map, which
+ * is cheap to look up from many threads.
+ */
+public class AttributeDictionary {
+    private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>();
+    private final int maxValues;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Creates a dictionary that keeps at most 4096 values.
+     */
+    public AttributeDictionary() {
+        this(4096);
+    }
+
+    /**
+     * @param maxValues The largest number of values kept.
+     */
+    public AttributeDictionary(int maxValues) {
+        this.maxValues = maxValues;
+    }
+
+    /**
+     * @param value An attribute value, may be <code>null</code>.
+     * @return The value in the dictionary equal to the specified value, or the
+     *         value itself if there is none and the dictionary is full.
+     */
+    public String canonical(String value) {
+        if (value == null) {
+            return null;
+        }
+        lookups.incrementAndGet();
+        String canonical = values.get(value);
+        if (canonical != null) {
+            shared.incrementAndGet();
+            return canonical;
+        }
+        if (values.size() >= maxValues) {
+            return value;
+        }
+        canonical = values.putIfAbsent(value, value);
+        return canonical == null ? value : canonical;
+    }
+
+    /**
+     * @return The number of values in the dictionary.
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return A string representation of the counters of this dictionary.
+     */
+    @Override
+    public String toString() {
+        return "Attribute dictionary: " + values.size() + " values | Lookups: " + lookups.get()
+                + " | Shared: " + shared.get();
+    }
+}
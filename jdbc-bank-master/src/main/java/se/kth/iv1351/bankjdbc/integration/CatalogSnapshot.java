@@ -0,0 +1,210 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.Rental;
+
+/**
+ * Writes a <code>CatalogState</code> to a file, and reads it back, in a compact
+ * binary format. The file is written with one <code>FileChannel</code> write of
+ * a buffer that is filled in memory, and read by mapping it, so that loading a
+ * large catalog costs little more than decoding it.
+ *
+ * The layout, all numbers are big endian:
+ * <pre>
+ * int   MAGIC
+ * long  taken_at, in epoch milliseconds
+ * long  catalog_version
+ * int   number of strings, then for each string its length as an unsigned
+ *       short and its UTF-8 bytes
+ * int   number of instruments, then for each instrument its id, type, brand,
+ *       site and price as ints, the strings as indexes in the string table
+ * int   number of rentals, then for each rental the instrument id, the
+ *       student id, and from_date and to_date as epoch days, all ints
+ * long  the CRC-32 of everything before it
+ * </pre>
+ * Each type, brand and site is stored once, in the string table, which keeps
+ * an instrument at 20 bytes and a rental at 16.
+ *
+ * A snapshot is written to a temporary file that is then moved in place, so a
+ * reader never sees a half written snapshot.
+ */
+public final class CatalogSnapshot {
+    /**
+     * "SGS2", changed whenever the layout changes.
+     */
+    private static final int MAGIC = 0x53475332;
+    private static final int INSTRUMENT_BYTES = 5 * Integer.BYTES;
+    private static final int RENTAL_BYTES = 4 * Integer.BYTES;
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private CatalogSnapshot() {
+    }
+
+    /**
+     * Writes the specified state to a snapshot file, replacing any earlier
+     * snapshot in the file.
+     *
+     * @param file  The snapshot file.
+     * @param state The state to write.
+     * @return The size of the snapshot, in bytes.
+     * @throws IOException If the snapshot could not be written.
+     */
+    public static long write(Path file, CatalogState state) throws IOException {
+        Map<String, Integer> stringIndexes = new LinkedHashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        long size = Integer.BYTES + 2 * Long.BYTES + 3 * Integer.BYTES + Long.BYTES;
+        for (Instrument instrument : state.getInstruments()) {
+            for (String string : new String[] { instrument.getInstrument_type(), instrument.getInstrument_brand(),
+                    instrument.getSite() }) {
+                if (!stringIndexes.containsKey(string)) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > MAX_STRING_BYTES) {
+                        throw new IOException("\"" + string + "\" is too long to snapshot.");
+                    }
+                    stringIndexes.put(string, strings.size());
+                    strings.add(bytes);
+                    size += Short.BYTES + bytes.length;
+                }
+            }
+        }
+        size += (long) state.getInstruments().size() * INSTRUMENT_BYTES
+                + (long) state.getActive_rentals().size() * RENTAL_BYTES;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The catalog is too large to snapshot, " + size + " bytes.");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        buffer.putInt(MAGIC);
+        buffer.putLong(state.getTaken_at().toEpochMilli());
+        buffer.putLong(state.getCatalog_version());
+        buffer.putInt(strings.size());
+        for (byte[] bytes : strings) {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.putInt(state.getInstruments().size());
+        for (Instrument instrument : state.getInstruments()) {
+            buffer.putInt(instrument.getInstrument_id());
+            buffer.putInt(stringIndexes.get(instrument.getInstrument_type()));
+            buffer.putInt(stringIndexes.get(instrument.getInstrument_brand()));
+            buffer.putInt(stringIndexes.get(instrument.getSite()));
+            buffer.putInt(instrument.getInstrument_price());
+        }
+        buffer.putInt(state.getActive_rentals().size());
+        for (Rental rental : state.getActive_rentals()) {
+            buffer.putInt(rental.getInstrument().getInstrument_id());
+            buffer.putInt(rental.getStudent_id());
+            buffer.putInt((int) rental.getFrom_date().toEpochDay());
+            buffer.putInt((int) rental.getTo_date().toEpochDay());
+        }
+        buffer.putLong(checksum(buffer, buffer.position()));
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * Reads a snapshot file written by <code>write()</code>.
+     *
+     * @param file The snapshot file.
+     * @return The state in the snapshot. Instruments with the same type, brand
+     *         or site share the same string.
+     * @throws IOException If the file could not be read, or is not a complete
+     *                     snapshot.
+     */
+    public static CatalogState read(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < Integer.BYTES + Long.BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a catalog snapshot.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int end = buffer.limit() - Long.BYTES;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a catalog snapshot.");
+        }
+        if (buffer.getLong(end) != checksum(buffer, end)) {
+            throw new IOException(file + " is corrupt, its checksum does not match.");
+        }
+        try {
+            return decode(buffer.limit(end).position(Integer.BYTES));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(file + " is corrupt.", e);
+        }
+    }
+
+    private static CatalogState decode(ByteBuffer buffer) throws IOException {
+        Instant taken_at = Instant.ofEpochMilli(buffer.getLong());
+        long catalog_version = buffer.getLong();
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        int instrumentCount = buffer.getInt();
+        List<Instrument> instruments = new ArrayList<>(instrumentCount);
+        Map<Integer, Instrument> instrumentsById = new HashMap<>(instrumentCount * 4 / 3 + 1);
+        for (int i = 0; i < instrumentCount; i++) {
+            int instrument_id = buffer.getInt();
+            String type = strings[buffer.getInt()];
+            String brand = strings[buffer.getInt()];
+            String site = strings[buffer.getInt()];
+            Instrument instrument = new Instrument(instrument_id, type, brand, buffer.getInt(), site);
+            instruments.add(instrument);
+            instrumentsById.put(instrument.getInstrument_id(), instrument);
+        }
+        int rentalCount = buffer.getInt();
+        List<Rental> rentals = new ArrayList<>(rentalCount);
+        for (int i = 0; i < rentalCount; i++) {
+            Instrument instrument = instrumentsById.get(buffer.getInt());
+            if (instrument == null) {
+                throw new IOException("A rental in the snapshot is of an instrument that is not in it.");
+            }
+            int student_id = buffer.getInt();
+            LocalDate from_date = LocalDate.ofEpochDay(buffer.getInt());
+            rentals.add(new Rental(student_id, instrument, from_date, LocalDate.ofEpochDay(buffer.getInt())));
+        }
+        return new CatalogState(taken_at, catalog_version, instruments, rentals);
+    }
+
+    /**
+     * @return The CRC-32 of the first <code>length</code> bytes of the buffer.
+     */
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(length).position(0));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,64 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.time.Duration;
+
+/**
+ * The point in time when an operation must be finished. A deadline is created
+ * by the controller when an operation starts, and is passed to the DAO which
+ * uses it to limit the time spent waiting for a free connection, the time spent
+ * retrying, and the query timeout of each statement.
+ */
+public final class Deadline {
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Creates a deadline the specified time from now.
+     *
+     * @param timeout The time the operation may take.
+     * @return The new deadline.
+     */
+    public static Deadline after(Duration timeout) {
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * @return The <code>System.nanoTime()</code> of this deadline.
+     */
+    public long getNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * @return The time left until the deadline, in nanoseconds. Negative if the
+     *         deadline has passed.
+     */
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * @return <code>true</code> if the deadline has passed.
+     */
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * JDBC query timeouts are specified in whole seconds, where zero means no
+     * timeout. This method rounds the remaining time up, and never returns less
+     * than one second.
+     *
+     * @return The remaining time as a JDBC query timeout.
+     */
+    public int queryTimeoutSeconds() {
+        long remaining = remainingNanos();
+        if (remaining <= 0) {
+            return 1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (remaining + 999_999_999) / 1_000_000_000));
+    }
+}
@@ -0,0 +1,59 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+
+/**
+ * Appends the rental events to a file, one JSON object per line, e.g.
+ * <code>{"event_id":17,"event_type":"rented","student_id":4,...}</code>. Each
+ * batch is written with one write and forced to disk before
+ * <code>publish()</code> returns. A stand-in for a message broker; a consumer
+ * tails the file and skips event ids it has already seen.
+ */
+public class FileRentalEventSink implements RentalEventSink {
+    private final FileChannel channel;
+
+    /**
+     * Opens the file for appending, creating it if it does not exist.
+     *
+     * @param file The file to append to.
+     * @throws IOException If the file could not be opened.
+     */
+    public FileRentalEventSink(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized void publish(List<RentalEvent> events) throws IOException {
+        StringBuilder lines = new StringBuilder(events.size() * 160);
+        for (RentalEvent event : events) {
+            lines.append("{\"event_id\":").append(event.getEvent_id())
+                    .append(",\"event_type\":\"").append(event.getEvent_type()).append('"')
+                    .append(",\"student_id\":").append(event.getStudent_id())
+                    .append(",\"instrument_id\":").append(event.getInstrument_id())
+                    .append(",\"site\":").append(EventLog.quote(event.getSite()))
+                    .append(",\"from_date\":\"").append(event.getFrom_date()).append('"')
+                    .append(",\"to_date\":\"").append(event.getTo_date()).append('"')
+                    .append(",\"created_at\":\"").append(event.getCreated_at()).append("\"}\n");
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,531 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.ExpirySweep;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.InstrumentQuery;
+import se.kth.iv1351.bankjdbc.model.Invoice;
+import se.kth.iv1351.bankjdbc.model.Rental;
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+import se.kth.iv1351.bankjdbc.model.SearchResult;
+import se.kth.iv1351.bankjdbc.model.SlowQuery;
+import se.kth.iv1351.bankjdbc.model.StoreHealth;
+import se.kth.iv1351.bankjdbc.model.TypeAvailability;
+
+/**
+ * Keeps all instruments and rentals in memory, without any database. Used to
+ * run SoundGood offline, for demos, and as a baseline when benchmarking
+ * <code>SoundGoodDAO</code>. Nothing is persisted, all data is lost when the
+ * program ends.
+ * 
+ * The data is indexed like the database; instruments by id, by lower case type
+ * and by the words of their type and brand, active rentals by instrument, and
+ * all rentals by student. All changes of a
+ * student's rentals are made while holding that student's entry in
+ * <code>rentalsByStudent</code>, and then the instrument's entry in
+ * <code>activeByInstrument</code>, always in that order. This makes the rental
+ * rules hold also when many threads rent and return instruments concurrently.
+ * 
+ * Deadlines are ignored, since no operation waits for anything else than those
+ * two locks.
+ */
+public class InMemorySoundGoodStore implements SoundGoodStore {
+    private static final int MAX_RENTALS_PER_STUDENT = 2;
+    private static final int RENTAL_DAYS = 365;
+
+    private final ConcurrentHashMap<Integer, Instrument> instrumentsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Integer>> instrumentIdsByType = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Rental> activeByInstrument = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, List<Rental>> rentalsByStudent = new ConcurrentHashMap<>();
+    private final InstrumentSearchIndex searchIndex = new InstrumentSearchIndex();
+    private final Set<String> sites = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<YearMonth, Map<Integer, Invoice>> invoicesByMonth = new ConcurrentHashMap<>();
+    private final Set<Rental> reminded = ConcurrentHashMap.newKeySet();
+    private final ConcurrentSkipListMap<Long, RentalEvent> outbox = new ConcurrentSkipListMap<>();
+    private final AtomicLong eventIds = new AtomicLong();
+    private final AtomicLong catalogVersion = new AtomicLong();
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+    private final AtomicLong reminders = new AtomicLong();
+
+    /**
+     * Adds an instrument to the catalog, or replaces the instrument with the same
+     * id.
+     *
+     * @param instrument The instrument to add.
+     */
+    public void addInstrument(Instrument instrument) {
+        Instrument previous = instrumentsById.put(instrument.getInstrument_id(), instrument);
+        catalogVersion.incrementAndGet();
+        if (previous != null) {
+            instrumentIdsByType.get(typeKey(previous.getInstrument_type())).remove(previous.getInstrument_id());
+            searchIndex.remove(previous);
+        }
+        instrumentIdsByType.computeIfAbsent(typeKey(instrument.getInstrument_type()),
+                type -> new ConcurrentSkipListSet<>()).add(instrument.getInstrument_id());
+        searchIndex.add(instrument);
+        sites.add(instrument.getSite());
+    }
+
+    /**
+     * Restores the instruments and active rentals of a snapshot, see
+     * <code>CatalogSnapshot</code>. Rentals already in the store are replaced
+     * by those in the snapshot.
+     *
+     * @param state The catalog to restore.
+     */
+    public void restore(CatalogState state) {
+        for (Instrument instrument : state.getInstruments()) {
+            addInstrument(instrument);
+        }
+        applyRentalChanges(state.getActive_rentals());
+    }
+
+    /**
+     * Applies rentals that have been made or terminated elsewhere, e.g. in the
+     * database after a snapshot was taken. A rental replaces the rental of the
+     * same student and instrument that started the same day, so applying a
+     * change more than once has no effect. The changes must be applied in the
+     * order they were made.
+     *
+     * @param changes The changed rentals, the earliest changed first.
+     */
+    public void applyRentalChanges(List<Rental> changes) {
+        LocalDate today = LocalDate.now();
+        for (Rental changed : changes) {
+            int instrument_id = changed.getInstrument().getInstrument_id();
+            Instrument known = instrumentsById.get(instrument_id);
+            if (known == null) {
+                addInstrument(changed.getInstrument());
+                known = changed.getInstrument();
+            }
+            Rental rental = new Rental(changed.getStudent_id(), known, changed.getFrom_date(), changed.getTo_date());
+            rentalsByStudent.compute(rental.getStudent_id(), (student, rentals) -> {
+                if (rental.isActive(today)) {
+                    activeByInstrument.put(instrument_id, rental);
+                } else {
+                    activeByInstrument.computeIfPresent(instrument_id,
+                            (id, current) -> isSameRental(current, rental) ? null : current);
+                }
+                List<Rental> updated = new ArrayList<>();
+                updated.add(rental);
+                if (rentals != null) {
+                    for (Rental earlier : rentals) {
+                        if (!isSameRental(earlier, rental)) {
+                            updated.add(earlier);
+                        }
+                    }
+                }
+                return List.copyOf(updated);
+            });
+        }
+    }
+
+    @Override
+    public List<String> listSites(Deadline deadline) {
+        return new ArrayList<>(sites);
+    }
+
+    @Override
+    public List<Instrument> printListInstrument(String instrument_type, String site, Deadline deadline) {
+        Set<Integer> ids = instrumentIdsByType.get(typeKey(instrument_type));
+        List<Instrument> available = new ArrayList<>();
+        if (ids == null) {
+            return available;
+        }
+        LocalDate today = LocalDate.now();
+        for (int id : ids) {
+            Instrument instrument = instrumentsById.get(id);
+            if (isAt(instrument, site) && activeRental(id, today) == null) {
+                available.add(instrument);
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public List<TypeAvailability> countAvailableByType(String site, int top_n, Deadline deadline) {
+        LocalDate today = LocalDate.now();
+        Comparator<Instrument> byPrice = Comparator.comparingInt(Instrument::getInstrument_price)
+                .thenComparingInt(Instrument::getInstrument_id);
+        List<TypeAvailability> overview = new ArrayList<>();
+        for (Set<Integer> ids : instrumentIdsByType.values()) {
+            List<Instrument> available = new ArrayList<>();
+            for (int id : ids) {
+                Instrument instrument = instrumentsById.get(id);
+                if (instrument != null && isAt(instrument, site) && activeRental(id, today) == null) {
+                    available.add(instrument);
+                }
+            }
+            if (available.isEmpty()) {
+                continue;
+            }
+            available.sort(byPrice);
+            overview.add(new TypeAvailability(available.get(0).getInstrument_type(), available.size(),
+                    List.copyOf(available.subList(0, Math.min(top_n, available.size())))));
+        }
+        overview.sort(Comparator.comparingInt(TypeAvailability::getAvailable).reversed()
+                .thenComparing(TypeAvailability::getInstrument_type));
+        return overview;
+    }
+
+    @Override
+    public List<Instrument> printListAllInstruments(String site, Deadline deadline) {
+        LocalDate today = LocalDate.now();
+        List<Instrument> available = new ArrayList<>();
+        for (Instrument instrument : instrumentsById.values()) {
+            if (isAt(instrument, site) && activeRental(instrument.getInstrument_id(), today) == null) {
+                available.add(instrument);
+            }
+        }
+        available.sort(Comparator.comparingInt(Instrument::getInstrument_id));
+        return available;
+    }
+
+    /**
+     * Only the current rental of each instrument is indexed, and all rentals
+     * start the day they are made, so this is exact for periods that do not
+     * start in the past.
+     */
+    @Override
+    public List<Instrument> findAvailable(String instrument_type, String site, LocalDate from_date,
+            LocalDate to_date, Deadline deadline) {
+        Set<Integer> ids = instrumentIdsByType.get(typeKey(instrument_type));
+        List<Instrument> available = new ArrayList<>();
+        if (ids == null) {
+            return available;
+        }
+        for (int id : ids) {
+            Instrument instrument = instrumentsById.get(id);
+            Rental rental = activeByInstrument.get(id);
+            boolean overlaps = rental != null && rental.getFrom_date().isBefore(to_date)
+                    && rental.getTo_date().isAfter(from_date);
+            if (isAt(instrument, site) && !overlaps) {
+                available.add(instrument);
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public SearchResult searchInstruments(InstrumentQuery query, Deadline deadline) {
+        Map<Integer, Double> scores = searchIndex.match(query.getText());
+        Collection<Integer> candidates = scores == null ? instrumentsById.keySet() : scores.keySet();
+        LocalDate today = LocalDate.now();
+        List<Instrument> matches = new ArrayList<>();
+        Map<String, Integer> typeCounts = new HashMap<>();
+        Map<String, Integer> brandCounts = new HashMap<>();
+        for (int id : candidates) {
+            Instrument instrument = instrumentsById.get(id);
+            if (instrument == null || !isAt(instrument, query.getSite())
+                    || instrument.getInstrument_price() < query.getMinPrice()
+                    || instrument.getInstrument_price() > query.getMaxPrice()
+                    || activeRental(id, today) != null) {
+                continue;
+            }
+            matches.add(instrument);
+            typeCounts.merge(instrument.getInstrument_type(), 1, Integer::sum);
+            brandCounts.merge(instrument.getInstrument_brand(), 1, Integer::sum);
+        }
+        Comparator<Instrument> byId = Comparator.comparingInt(Instrument::getInstrument_id);
+        Comparator<Instrument> byScore = scores == null ? byId
+                : Comparator.<Instrument>comparingDouble(i -> -scores.get(i.getInstrument_id())).thenComparing(byId);
+        List<Instrument> best = matches.stream().sorted(byScore).limit(query.getLimit())
+                .collect(Collectors.toList());
+        return new SearchResult(best, matches.size(), largestFirst(typeCounts), largestFirst(brandCounts));
+    }
+
+    @Override
+    public int checkStudentRental(int student_id, Deadline deadline) {
+        return countActive(rentalsByStudent.get(student_id), LocalDate.now());
+    }
+
+    @Override
+    public int checkInstrumentRental(int instrument_id, Deadline deadline) {
+        boolean available = instrumentsById.containsKey(instrument_id)
+                && activeRental(instrument_id, LocalDate.now()) == null;
+        return available ? 1 : 0;
+    }
+
+    @Override
+    public boolean rentInstrument(int student_id, int instrument_id, Deadline deadline) {
+        Instrument instrument = instrumentsById.get(instrument_id);
+        LocalDate today = LocalDate.now();
+        Rental rental = new Rental(student_id, instrument, today, today.plusDays(RENTAL_DAYS));
+        boolean[] wasGranted = { false };
+        if (instrument != null) {
+            rentalsByStudent.compute(student_id, (student, rentals) -> {
+                if (countActive(rentals, today) >= MAX_RENTALS_PER_STUDENT) {
+                    return rentals;
+                }
+                Rental active = activeByInstrument.compute(instrument_id, (id, current) -> {
+                    if (current != null && current.isActive(today)) {
+                        return current;
+                    }
+                    addEvent("rented", rental);
+                    return rental;
+                });
+                if (active != rental) {
+                    return rentals;
+                }
+                wasGranted[0] = true;
+                List<Rental> updated = new ArrayList<>();
+                updated.add(rental);
+                if (rentals != null) {
+                    updated.addAll(rentals);
+                }
+                return List.copyOf(updated);
+            });
+        }
+        (wasGranted[0] ? granted : denied).incrementAndGet();
+        return wasGranted[0];
+    }
+
+    @Override
+    public void terminateRental(int instrument_id, Deadline deadline) throws SoundGoodException {
+        LocalDate today = LocalDate.now();
+        Rental active = activeRental(instrument_id, today);
+        if (active == null) {
+            throw new RentalNotFoundException("Could not terminate rental, the instrument is not rented out.");
+        }
+        boolean[] terminated = { false };
+        rentalsByStudent.computeIfPresent(active.getStudent_id(), (student, rentals) -> {
+            Rental ended = new Rental(student, active.getInstrument(), active.getFrom_date(), today);
+            activeByInstrument.computeIfPresent(instrument_id, (id, current) -> {
+                if (!current.equals(active)) {
+                    return current;
+                }
+                terminated[0] = true;
+                addEvent("terminated", ended);
+                return null;
+            });
+            if (!terminated[0]) {
+                return rentals;
+            }
+            List<Rental> updated = new ArrayList<>(rentals.size());
+            for (Rental rental : rentals) {
+                updated.add(isSameRental(rental, active) ? ended : rental);
+            }
+            return List.copyOf(updated);
+        });
+        if (!terminated[0]) {
+            throw new RentalNotFoundException("Could not terminate rental, the instrument is not rented out.");
+        }
+        reminded.remove(active);
+    }
+
+    @Override
+    public List<Rental> findRentalsByStudent(int student_id, Deadline deadline) {
+        List<Rental> rentals = rentalsByStudent.get(student_id);
+        return rentals == null ? List.of() : rentals;
+    }
+
+    @Override
+    public List<Rental> findRentalsForBilling(YearMonth billing_month, int after_student_id, int max_students,
+            Deadline deadline) {
+        LocalDate monthStart = billing_month.atDay(1);
+        LocalDate monthEnd = billing_month.plusMonths(1).atDay(1);
+        List<Rental> page = new ArrayList<>();
+        rentalsByStudent.keySet().stream()
+                .filter(student -> student > after_student_id)
+                .sorted()
+                .map(rentalsByStudent::get)
+                .map(rentals -> rentals.stream()
+                        .filter(rental -> rental.getFrom_date().isBefore(monthEnd)
+                                && rental.getTo_date().isAfter(monthStart))
+                        .collect(Collectors.toList()))
+                .filter(rentals -> !rentals.isEmpty())
+                .limit(max_students)
+                .forEach(page::addAll);
+        return page;
+    }
+
+    @Override
+    public void storeInvoices(List<Invoice> invoices, Deadline deadline) {
+        for (Invoice invoice : invoices) {
+            invoicesByMonth.computeIfAbsent(invoice.getBilling_month(), month -> new ConcurrentHashMap<>())
+                    .put(invoice.getStudent_id(), invoice);
+        }
+    }
+
+    /**
+     * Expired rentals are closed by removing them from
+     * <code>activeByInstrument</code>, where they are already ignored by all
+     * reads. The reminders are only counted.
+     */
+    @Override
+    public ExpirySweep sweepExpiringRentals(int reminder_days, int max_rentals, Deadline deadline) {
+        LocalDate today = LocalDate.now();
+        LocalDate horizon = today.plusDays(reminder_days);
+        int expiring = 0;
+        int expired = 0;
+        for (Rental rental : activeByInstrument.values()) {
+            if (expiring + expired == max_rentals) {
+                break;
+            }
+            if (!rental.isActive(today)) {
+                boolean[] closed = { false };
+                activeByInstrument.computeIfPresent(rental.getInstrument().getInstrument_id(), (id, current) -> {
+                    if (!current.equals(rental)) {
+                        return current;
+                    }
+                    closed[0] = true;
+                    addEvent("expired", rental);
+                    return null;
+                });
+                if (closed[0]) {
+                    reminded.remove(rental);
+                    expired++;
+                }
+            } else if (!rental.getTo_date().isAfter(horizon) && reminded.add(rental)) {
+                expiring++;
+            }
+        }
+        reminders.addAndGet(expiring + expired);
+        return new ExpirySweep(expiring + expired, expiring, expired);
+    }
+
+    @Override
+    public List<RentalEvent> readRentalEvents(int max_events, Deadline deadline) {
+        return outbox.values().stream().limit(max_events).collect(Collectors.toList());
+    }
+
+    @Override
+    public void acknowledgeRentalEvents(List<RentalEvent> events, Deadline deadline) {
+        for (RentalEvent event : events) {
+            outbox.remove(event.getEvent_id());
+        }
+    }
+
+    @Override
+    public CatalogState readCatalogState(Deadline deadline) {
+        List<Instrument> instruments = new ArrayList<>(instrumentsById.values());
+        instruments.sort(Comparator.comparingInt(Instrument::getInstrument_id));
+        LocalDate today = LocalDate.now();
+        List<Rental> active = activeByInstrument.values().stream()
+                .filter(rental -> rental.isActive(today))
+                .collect(Collectors.toList());
+        return new CatalogState(Instant.now(), catalogVersion.get(), instruments, active);
+    }
+
+    /**
+     * All rentals are made in this store, there are no changes made elsewhere to
+     * catch up with.
+     */
+    @Override
+    public List<Rental> findRentalChangesSince(Instant since, Deadline deadline) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Nothing is slow enough to profile in memory, the threshold is ignored.
+     */
+    @Override
+    public void profileSlowQueries(Duration threshold) {
+    }
+
+    @Override
+    public List<SlowQuery> getSlowQueries() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Nothing to release, the instruments and rentals are simply left to the
+     * garbage collector.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void probe(Deadline deadline) {
+    }
+
+    /**
+     * Always connected and never waiting, and the operations are not counted.
+     */
+    @Override
+    public StoreHealth getHealth() {
+        return new StoreHealth(true, 0, 1, 0, 0, 0, 0, null);
+    }
+
+    @Override
+    public String getStatistics() {
+        return "In-memory store: " + instrumentsById.size() + " instruments | "
+                + activeByInstrument.size() + " rented | Rentals granted: " + granted.get()
+                + " | Rentals denied: " + denied.get() + " | Reminders: " + reminders.get();
+    }
+
+    private Rental activeRental(int instrument_id, LocalDate today) {
+        Rental rental = activeByInstrument.get(instrument_id);
+        return rental != null && rental.isActive(today) ? rental : null;
+    }
+
+    /**
+     * Adds an event to the outbox. Called while holding the instrument's entry
+     * in <code>activeByInstrument</code>, so that the events of an instrument
+     * get increasing ids.
+     */
+    private void addEvent(String event_type, Rental rental) {
+        long event_id = eventIds.incrementAndGet();
+        Instrument instrument = rental.getInstrument();
+        outbox.put(event_id, new RentalEvent(event_id, event_type, rental.getStudent_id(),
+                instrument.getInstrument_id(), instrument.getSite(), rental.getFrom_date(), rental.getTo_date(),
+                Instant.now()));
+    }
+
+    private static boolean isSameRental(Rental rental, Rental other) {
+        return rental.getStudent_id() == other.getStudent_id()
+                && rental.getInstrument().getInstrument_id() == other.getInstrument().getInstrument_id()
+                && rental.getFrom_date().equals(other.getFrom_date());
+    }
+
+    private static boolean isAt(Instrument instrument, String site) {
+        return site == null || site.equals(instrument.getSite());
+    }
+
+    private static String typeKey(String instrument_type) {
+        return instrument_type.toLowerCase();
+    }
+
+    private static Map<String, Integer> largestFirst(Map<String, Integer> counts) {
+        Map<String, Integer> sorted = new LinkedHashMap<>();
+        counts.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+        return sorted;
+    }
+
+    private static int countActive(List<Rental> rentals, LocalDate today) {
+        if (rentals == null) {
+            return 0;
+        }
+        int active = 0;
+        for (Rental rental : rentals) {
+            if (rental.isActive(today)) {
+                active++;
+            }
+        }
+        return active;
+    }
+}
@@ -0,0 +1,173 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.bankjdbc.model.Instrument;
+
+/**
+ * Caches the available instruments of the most recently listed types, per site
+ * and for all sites. At most <code>MAX_LISTINGS</code> listings are kept, the
+ * least recently used is evicted first, and an entry expires
+ * <code>TTL_NANOS</code> after it was read so that rentals ending by date are
+ * noticed.
+ * 
+ * Entries are invalidated by the DAO when an instrument is rented or returned,
+ * using the site and type of the instrument, after the change is committed.
+ * That drops the listing of the type at the instrument's site and the listing
+ * of the type at all sites, the listings of other sites are kept. A listing
+ * read before that is not cached if it is put after the invalidation, see
+ * <code>generation()</code>.
+ * 
+ * The warm listings, computed from a snapshot when the application restarts,
+ * are kept apart from the others. They are neither counted against
+ * <code>MAX_LISTINGS</code> nor expire after <code>TTL_NANOS</code>, but are
+ * kept until invalidated, or for at most <code>WARM_TTL_NANOS</code>, so that
+ * rentals made by other processes are noticed within minutes.
+ */
+class InstrumentListCache {
+    private static final int MAX_LISTINGS = 256;
+    private static final long TTL_NANOS = 10_000_000_000L;
+    private static final long WARM_TTL_NANOS = 300_000_000_000L;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > MAX_LISTINGS) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<String, Entry> warm = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private long generation;
+
+    private static final class Entry {
+        private final long readAtNanos;
+        private final List<Instrument> instruments;
+
+        private Entry(long readAtNanos, List<Instrument> instruments) {
+            this.readAtNanos = readAtNanos;
+            this.instruments = instruments;
+        }
+    }
+
+    /**
+     * @param site            The listed site, <code>null</code> for all sites.
+     * @param instrument_type The listed type, case is ignored.
+     * @return The cached instruments, or <code>null</code> if the type is not
+     *         cached or has expired.
+     */
+    synchronized List<Instrument> get(String site, String instrument_type) {
+        String key = keyOf(site, instrument_type);
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.readAtNanos > TTL_NANOS) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            entry = warm.get(key);
+            if (entry != null && System.nanoTime() - entry.readAtNanos > WARM_TTL_NANOS) {
+                warm.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.instruments;
+    }
+
+    /**
+     * @return The number of invalidations so far. Read it before reading a
+     *         listing from the database, and pass it to <code>put()</code>.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores the available instruments of a type, as just read from the
+     * database, unless a listing has been invalidated since
+     * <code>generation</code>, since the read listing may then be stale.
+     */
+    synchronized void put(String site, String instrument_type, List<Instrument> instruments, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        entries.put(keyOf(site, instrument_type), new Entry(System.nanoTime(), List.copyOf(instruments)));
+    }
+
+    /**
+     * Stores a warm listing of the available instruments of a type, computed
+     * from a snapshot, unless a listing has been invalidated since
+     * <code>generation</code>.
+     */
+    synchronized void putWarm(String site, String instrument_type, List<Instrument> instruments,
+            long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        warm.put(keyOf(site, instrument_type), new Entry(System.nanoTime(), List.copyOf(instruments)));
+    }
+
+    /**
+     * Removes the entries, warm or not, that may list an instrument of the
+     * specified type at the specified site.
+     */
+    synchronized void invalidate(String site, String instrument_type) {
+        generation++;
+        if (entries.remove(keyOf(site, instrument_type)) != null) {
+            invalidations.incrementAndGet();
+        }
+        if (entries.remove(keyOf(null, instrument_type)) != null) {
+            invalidations.incrementAndGet();
+        }
+        if (warm.remove(keyOf(site, instrument_type)) != null) {
+            invalidations.incrementAndGet();
+        }
+        if (warm.remove(keyOf(null, instrument_type)) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The age of the oldest listing in the cache, not counting the warm
+     *         listings, or <code>null</code> if it is empty. Expired listings are
+     *         only removed when looked up, so the age may exceed the time to
+     *         live.
+     */
+    synchronized Duration oldestAge() {
+        long now = System.nanoTime();
+        long oldest = Long.MIN_VALUE;
+        for (Entry entry : entries.values()) {
+            oldest = Math.max(oldest, now - entry.readAtNanos);
+        }
+        return oldest == Long.MIN_VALUE ? null : Duration.ofNanos(oldest);
+    }
+
+    private static String keyOf(String site, String instrument_type) {
+        return (site == null ? "" : site) + "/" + instrument_type.toLowerCase();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return "Instrument list cache: " + entries.size() + " listings, " + warm.size() + " warm | Hit ratio: "
+                + (lookups == 0 ? "-" : String.format("%.1f%%", 100.0 * hitCount / lookups))
+                + " (" + hitCount + " of " + lookups + ") | Invalidations: " + invalidations.get()
+                + " | Evictions: " + evictions.get();
+    }
+}
@@ -0,0 +1,128 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import se.kth.iv1351.bankjdbc.model.Instrument;
+
+/**
+ * An inverted index from the words of instrument types and brands to the ids
+ * of the instruments, used by <code>InMemorySoundGoodStore</code> to answer
+ * searches without scanning the catalog. The words are kept sorted, so that
+ * all words starting with a prefix are found with one range lookup. There are
+ * only a few dozen distinct words, so a term that matches no word is compared
+ * to each of them by edit distance.
+ */
+class InstrumentSearchIndex {
+    private static final double EXACT_SCORE = 1.0;
+    private static final double PREFIX_SCORE = 0.8;
+    private static final double FUZZY_SCORE = 0.5;
+
+    private final ConcurrentSkipListMap<String, Set<Integer>> idsByWord = new ConcurrentSkipListMap<>();
+
+    /**
+     * Indexes the type and brand of the specified instrument.
+     */
+    void add(Instrument instrument) {
+        for (String word : words(instrument)) {
+            idsByWord.computeIfAbsent(word, w -> ConcurrentHashMap.newKeySet()).add(instrument.getInstrument_id());
+        }
+    }
+
+    /**
+     * Removes the specified instrument from the index.
+     */
+    void remove(Instrument instrument) {
+        for (String word : words(instrument)) {
+            Set<Integer> ids = idsByWord.get(word);
+            if (ids != null) {
+                ids.remove(instrument.getInstrument_id());
+            }
+        }
+    }
+
+    /**
+     * Finds the instruments matching all words of the specified text. A word
+     * matches exactly, as a prefix, or, if it matches nothing else, with a few
+     * misspelled characters.
+     *
+     * @param text The lower case search text.
+     * @return The score of each matching instrument, higher is better, or
+     *         <code>null</code> if the text has no words and all instruments
+     *         match.
+     */
+    Map<Integer, Double> match(String text) {
+        Map<Integer, Double> scores = null;
+        for (String term : text.split("\\s+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            Map<Integer, Double> termScores = matchTerm(term);
+            if (scores == null) {
+                scores = termScores;
+            } else {
+                scores.keySet().retainAll(termScores.keySet());
+                scores.replaceAll((id, score) -> score + termScores.get(id));
+            }
+            if (scores.isEmpty()) {
+                break;
+            }
+        }
+        return scores;
+    }
+
+    private Map<Integer, Double> matchTerm(String term) {
+        Map<Integer, Double> termScores = new HashMap<>();
+        for (Map.Entry<String, Set<Integer>> entry : idsByWord
+                .subMap(term, true, term + Character.MAX_VALUE, true).entrySet()) {
+            double score = entry.getKey().equals(term) ? EXACT_SCORE : PREFIX_SCORE;
+            for (int id : entry.getValue()) {
+                termScores.merge(id, score, Math::max);
+            }
+        }
+        if (!termScores.isEmpty()) {
+            return termScores;
+        }
+        int maxEdits = term.length() <= 3 ? 0 : term.length() <= 6 ? 1 : 2;
+        if (maxEdits == 0) {
+            return termScores;
+        }
+        for (Map.Entry<String, Set<Integer>> entry : idsByWord.entrySet()) {
+            String word = entry.getKey();
+            String wordPrefix = word.substring(0, Math.min(word.length(), term.length()));
+            if (Math.min(editDistance(term, word), editDistance(term, wordPrefix)) <= maxEdits) {
+                for (int id : entry.getValue()) {
+                    termScores.merge(id, FUZZY_SCORE, Math::max);
+                }
+            }
+        }
+        return termScores;
+    }
+
+    private static String[] words(Instrument instrument) {
+        return (instrument.getInstrument_type() + " " + instrument.getInstrument_brand()).toLowerCase()
+                .split("\\s+");
+    }
+
+    private static int editDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+}
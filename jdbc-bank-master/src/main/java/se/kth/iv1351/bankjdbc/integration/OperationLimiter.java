@@ -0,0 +1,140 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of operations that use the database at the same time. An
+ * operation that can not start within the maximum queueing time, or before its
+ * own deadline, is rejected immediately with an
+ * <code>OverloadedException</code> instead of waiting behind a slow query.
+ * This way a burst of requests fails fast instead of making every user wait.
+ */
+public class OperationLimiter {
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long maxQueueNanos;
+    private volatile boolean closed;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param maxConcurrent  The number of operations that may run at the same
+     *                       time.
+     * @param maxQueueMillis The longest time an operation may wait to start.
+     */
+    public OperationLimiter(int maxConcurrent, long maxQueueMillis) {
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMillis);
+    }
+
+    /**
+     * Waits until the operation may start. Must be followed by a call to
+     * <code>release()</code> when the operation is finished.
+     *
+     * @param deadline The deadline of the operation.
+     * @throws OverloadedException If the operation could not start within the
+     *                             maximum queueing time or before its deadline,
+     *                             or the limiter has been closed.
+     */
+    public void acquire(Deadline deadline) throws OverloadedException {
+        if (closed) {
+            throw new OverloadedException("SoundGood is shutting down, the request was rejected.");
+        }
+        long startNanos = System.nanoTime();
+        long waitNanos = Math.min(maxQueueNanos, deadline.remainingNanos());
+        boolean acquired;
+        try {
+            acquired = waitNanos > 0 && permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            shed.incrementAndGet();
+            throw new OverloadedException("SoundGood is overloaded, the request was rejected after waiting "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+                    + " ms. Please try again in a moment.");
+        }
+        if (closed) {
+            permits.release();
+            throw new OverloadedException("SoundGood is shutting down, the request was rejected.");
+        }
+        admitted.incrementAndGet();
+        totalQueueNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Stops admitting operations, and waits for the running operations to
+     * finish. Operations that are queued, or that arrive later, are rejected.
+     *
+     * @param timeoutMillis The longest time to wait.
+     * @return <code>true</code> if all running operations finished,
+     *         <code>false</code> if some were still running when the timeout
+     *         passed. Call again to keep waiting.
+     */
+    public boolean drain(long timeoutMillis) {
+        closed = true;
+        try {
+            return permits.tryAcquire(maxConcurrent, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Lets the next queued operation start.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return The number of operations that are running.
+     */
+    int getRunning() {
+        return Math.max(0, maxConcurrent - permits.availablePermits());
+    }
+
+    /**
+     * @return The number of operations that may run at the same time.
+     */
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return The number of operations waiting to start.
+     */
+    int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return The number of operations rejected so far.
+     */
+    long getRejected() {
+        return shed.get();
+    }
+
+    /**
+     * @return A string representation of the counters of this limiter.
+     */
+    @Override
+    public String toString() {
+        long admittedCount = admitted.get();
+        long averageQueueMicros = admittedCount == 0 ? 0
+                : TimeUnit.NANOSECONDS.toMicros(totalQueueNanos.get() / admittedCount);
+        return "Admitted: " + admittedCount
+                + " | Rejected (overload): " + shed.get()
+                + " | Waiting: " + permits.getQueueLength()
+                + " | Average queueing: " + averageQueueMicros + " us";
+    }
+}
@@ -0,0 +1,17 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * Thrown when an operation is rejected without being started because the
+ * database is busy with other operations.
+ */
+public class OverloadedException extends SoundGoodException {
+
+    /**
+     * Create a new instance thrown because of the specified reason.
+     *
+     * @param reason Why the exception was thrown.
+     */
+    public OverloadedException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,225 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.SlowQuery;
+
+/**
+ * Keeps the slowest statements executed by <code>SoundGoodDAO</code>. A
+ * statement that runs longer than the threshold is explained on a separate,
+ * read-only connection, by a background thread so that the operation that ran
+ * it is not delayed further. The DAO records the statements of a transaction
+ * only once it is committed, so that the explain does not wait for its locks.
+ * Only the <code>capacity</code> slowest samples are kept.
+ * 
+ * A read-only query is explained with <code>EXPLAIN (ANALYZE, BUFFERS)</code>,
+ * which executes it again. Any other statement, e.g. one that writes in a
+ * <code>WITH</code> query or locks rows with <code>FOR UPDATE</code>, is only
+ * explained with <code>EXPLAIN</code>, since executing it again would write or
+ * lock the same rows a second time.
+ * 
+ * Profiling is off unless a threshold is set, either with the system property
+ * <code>soundgood.profile.thresholdMillis</code> or with the
+ * <code>PROFILE</code> command.
+ */
+class QueryProfiler {
+    /**
+     * Opens the connection used to explain statements.
+     */
+    interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private static final int EXPLAIN_TIMEOUT_SECONDS = 10;
+    private static final Pattern READ_ONLY_START = Pattern.compile("^\\s*(SELECT|WITH)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern WRITES_OR_LOCKS = Pattern.compile("\\b(INSERT|UPDATE|DELETE|MERGE|SHARE)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Comparator<SlowQuery> BY_ELAPSED = Comparator.comparing(SlowQuery::getElapsed);
+
+    private final ConnectionFactory connectionFactory;
+    private final int capacity;
+    private final PriorityQueue<SlowQuery> slowest;
+    private final ThreadPoolExecutor explainer;
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long thresholdNanos;
+    private Connection explainConnection;
+
+    /**
+     * Creates a profiler that keeps the <code>capacity</code> slowest samples.
+     *
+     * @param connectionFactory Opens the connection used to explain statements.
+     * @param capacity          The number of samples to keep.
+     */
+    QueryProfiler(ConnectionFactory connectionFactory, int capacity) {
+        this.connectionFactory = connectionFactory;
+        this.capacity = capacity;
+        this.slowest = new PriorityQueue<>(capacity + 1, BY_ELAPSED);
+        this.explainer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "query-profiler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.explainer.allowCoreThreadTimeOut(true);
+        long thresholdMillis = Long.getLong("soundgood.profile.thresholdMillis", -1);
+        setThreshold(thresholdMillis < 0 ? null : Duration.ofMillis(thresholdMillis));
+    }
+
+    /**
+     * @param threshold Statements running longer than this are profiled,
+     *                  <code>null</code> turns profiling off.
+     */
+    void setThreshold(Duration threshold) {
+        thresholdNanos = threshold == null ? -1 : threshold.toNanos();
+    }
+
+    /**
+     * @return <code>true</code> if a statement that took the specified time shall
+     *         be passed to <code>record()</code>.
+     */
+    boolean isSlow(long elapsedNanos) {
+        long threshold = thresholdNanos;
+        return threshold >= 0 && elapsedNanos >= threshold;
+    }
+
+    /**
+     * Records an executed statement, after its transaction was committed. If it
+     * was slower than the threshold, and slower than the fastest sample kept, it
+     * is explained in the background.
+     *
+     * @param boundStatement The statement with its parameters bound, as
+     *                       returned by <code>toString()</code> of the
+     *                       PostgreSQL driver's prepared statements.
+     * @param elapsedNanos   How long the statement took to execute.
+     */
+    void record(String boundStatement, long elapsedNanos) {
+        long threshold = thresholdNanos;
+        if (threshold < 0 || elapsedNanos < threshold || !isSlowerThanKept(elapsedNanos)) {
+            return;
+        }
+        Instant executedAt = Instant.now();
+        Duration elapsed = Duration.ofNanos(elapsedNanos);
+        EventLog.warn("query.slow", "millis", elapsed.toMillis(), "statement", boundStatement);
+        try {
+            explainer.execute(() -> keep(new SlowQuery(executedAt, elapsed, boundStatement,
+                    explain(boundStatement))));
+        } catch (RejectedExecutionException busy) {
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The kept samples, the slowest first.
+     */
+    synchronized List<SlowQuery> getSlowest() {
+        List<SlowQuery> samples = new ArrayList<>(slowest);
+        samples.sort(BY_ELAPSED.reversed());
+        return samples;
+    }
+
+    /**
+     * Stops explaining statements and closes the explain connection.
+     */
+    void close() {
+        explainer.shutdownNow();
+        try {
+            explainer.awaitTermination(EXPLAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        closeExplainConnection();
+    }
+
+    private synchronized boolean isSlowerThanKept(long elapsedNanos) {
+        return slowest.size() < capacity || slowest.peek().getElapsed().toNanos() < elapsedNanos;
+    }
+
+    private synchronized void keep(SlowQuery sample) {
+        captured.incrementAndGet();
+        slowest.add(sample);
+        if (slowest.size() > capacity) {
+            slowest.poll();
+        }
+    }
+
+    /**
+     * Runs on the explainer thread only, which is the only user of the explain
+     * connection.
+     */
+    private String explain(String boundStatement) {
+        try {
+            if (explainConnection == null) {
+                explainConnection = connectionFactory.open();
+                explainConnection.setAutoCommit(false);
+                explainConnection.setReadOnly(true);
+            }
+            String explain = isReadOnly(boundStatement) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+            StringBuilder plan = new StringBuilder();
+            try (Statement stmt = explainConnection.createStatement()) {
+                stmt.setQueryTimeout(EXPLAIN_TIMEOUT_SECONDS);
+                try (ResultSet result = stmt.executeQuery(explain + boundStatement)) {
+                    while (result.next()) {
+                        plan.append(result.getString(1)).append('\n');
+                    }
+                }
+            } finally {
+                explainConnection.rollback();
+            }
+            return plan.toString();
+        } catch (SQLException sqle) {
+            closeExplainConnection();
+            return "Could not explain the statement: " + sqle.getMessage();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the statement is a query that neither writes
+     *         nor locks rows, and can therefore be executed again by
+     *         <code>ANALYZE</code>. A statement that merely mentions one of the
+     *         keywords, e.g. in a string, is taken to write.
+     */
+    static boolean isReadOnly(String boundStatement) {
+        return READ_ONLY_START.matcher(boundStatement).find() && !WRITES_OR_LOCKS.matcher(boundStatement).find();
+    }
+
+    private void closeExplainConnection() {
+        if (explainConnection == null) {
+            return;
+        }
+        try {
+            explainConnection.close();
+        } catch (SQLException ignored) {
+            // A new connection is opened for the next explain.
+        }
+        explainConnection = null;
+    }
+
+    /**
+     * @return A string representation of the counters of this profiler.
+     */
+    @Override
+    public String toString() {
+        long threshold = thresholdNanos;
+        return "Profiling: " + (threshold < 0 ? "off" : "over " + threshold / 1_000_000 + " ms")
+                + " | Slow statements captured: " + captured.get()
+                + " | Not explained, profiler busy: " + skipped.get();
+    }
+}
@@ -0,0 +1,57 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+
+/**
+ * Delivers the rental events to a bounded queue in the same process, which
+ * consumers take them from. A stand-in for a message broker in demos and
+ * benchmarks. If the consumers fall behind and the queue stays full,
+ * <code>publish()</code> fails and the events are kept in the outbox until the
+ * relay tries again.
+ */
+public class QueueRentalEventSink implements RentalEventSink {
+    private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+    private final BlockingQueue<RentalEvent> queue;
+
+    /**
+     * @param capacity The largest number of events in the queue.
+     */
+    public QueueRentalEventSink(int capacity) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void publish(List<RentalEvent> events) throws IOException {
+        try {
+            for (RentalEvent event : events) {
+                if (!queue.offer(event, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("The rental event queue is full.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while delivering rental events.", e);
+        }
+    }
+
+    /**
+     * @return The queue that consumers take the events from.
+     */
+    public BlockingQueue<RentalEvent> getQueue() {
+        return queue;
+    }
+
+    /**
+     * Events already in the queue are left for the consumers.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,24 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+
+/**
+ * Where the outbox relay delivers the rental events, e.g. a file, an
+ * in-process queue, or a message broker.
+ */
+public interface RentalEventSink extends Closeable {
+
+    /**
+     * Delivers a batch of events. When it returns the events must be durable
+     * at the destination, since they are then removed from the outbox.
+     *
+     * @param events The events, in the order they shall be delivered.
+     * @throws IOException If the events could not be delivered. Any of them may
+     *                     have been delivered, they are all delivered again.
+     */
+    public void publish(List<RentalEvent> events) throws IOException;
+}
@@ -0,0 +1,18 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * Thrown when a rental is to be terminated but the instrument is not rented
+ * out. Unlike other <code>SoundGoodException</code>s this is an answer, not a
+ * failure, retrying gives the same result.
+ */
+public class RentalNotFoundException extends SoundGoodException {
+
+    /**
+     * Create a new instance thrown because of the specified reason.
+     *
+     * @param reason Why the exception was thrown.
+     */
+    public RentalNotFoundException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,194 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if a failed transaction in <code>SoundGoodDAO</code> is worth
+ * retrying, and for how long to back off before the next attempt. Failures are
+ * classified by their SQLState:
+ * <ul>
+ * <li>40001 serialization failure and 40P01 deadlock are transient, the
+ * transaction is simply run again.</li>
+ * <li>08xxx connection exceptions are transient, but the connection must be
+ * re-established before the next attempt.</li>
+ * <li>Everything else (constraint violations, syntax errors, ...) is
+ * permanent and is never retried.</li>
+ * </ul>
+ * The policy also counts attempts, retries and give-ups, these counters are
+ * shown by the <code>STATS</code> command.
+ */
+public class RetryPolicy {
+    /**
+     * The classes of failure the policy distinguishes between.
+     */
+    public enum Failure {
+        SERIALIZATION, DEADLOCK, CONNECTION, PERMANENT
+    }
+
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long deadlineMillis;
+
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong serializationRetries = new AtomicLong();
+    private final AtomicLong deadlockRetries = new AtomicLong();
+    private final AtomicLong connectionRetries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Creates a policy with the default settings; at most 5 attempts, backoff
+     * starting at 10 ms and capped at 500 ms, and a total deadline of 3 seconds.
+     */
+    public RetryPolicy() {
+        this(5, 10, 500, 3000);
+    }
+
+    /**
+     * Creates a policy with the specified settings.
+     *
+     * @param maxAttempts       The maximum number of times a transaction is run,
+     *                          including the first attempt.
+     * @param baseBackoffMillis The backoff before the first retry.
+     * @param maxBackoffMillis  The largest backoff between two attempts.
+     * @param deadlineMillis    No retry is started later than this many
+     *                          milliseconds after the first attempt.
+     */
+    public RetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, long deadlineMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Classifies the specified exception, or any exception in its chain of
+     * next exceptions, using its SQLState.
+     *
+     * @param exception The exception to classify.
+     * @return The failure class of the exception.
+     */
+    public static Failure classify(SQLException exception) {
+        for (SQLException e = exception; e != null; e = e.getNextException()) {
+            String state = e.getSQLState();
+            if (state == null) {
+                continue;
+            }
+            if (state.equals("40001")) {
+                return Failure.SERIALIZATION;
+            }
+            if (state.equals("40P01")) {
+                return Failure.DEADLOCK;
+            }
+            if (state.startsWith("08")) {
+                return Failure.CONNECTION;
+            }
+        }
+        return Failure.PERMANENT;
+    }
+
+    /**
+     * @return The time, in milliseconds, a transaction may keep retrying.
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Decides if a transaction that failed with the specified exception shall be
+     * run again, and records the decision.
+     *
+     * @param failure       The class of the failure.
+     * @param attempt       The number of the attempt that failed, starting at
+     *                      one.
+     * @param deadlineNanos The <code>System.nanoTime()</code> after which no new
+     *                      attempt may be started.
+     * @return <code>true</code> if the transaction shall be retried.
+     */
+    public boolean shouldRetry(Failure failure, int attempt, long deadlineNanos) {
+        if (failure == Failure.PERMANENT) {
+            return false;
+        }
+        if (attempt >= maxAttempts || System.nanoTime() + backoffNanos(attempt) > deadlineNanos) {
+            exhausted.incrementAndGet();
+            return false;
+        }
+        retries.incrementAndGet();
+        switch (failure) {
+            case SERIALIZATION:
+                serializationRetries.incrementAndGet();
+                break;
+            case DEADLOCK:
+                deadlockRetries.incrementAndGet();
+                break;
+            default:
+                connectionRetries.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Sleeps before the next attempt. The backoff grows exponentially with the
+     * attempt number, and the actual sleep is a random value between half and
+     * all of it, so that transactions that collided do not collide again.
+     *
+     * @param attempt The number of the attempt that failed, starting at one.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void backoff(int attempt) throws InterruptedException {
+        long ceiling = backoffNanos(attempt);
+        long sleepNanos = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+        Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+    }
+
+    /**
+     * Called once for every transaction that is started.
+     */
+    void transactionStarted() {
+        transactions.incrementAndGet();
+    }
+
+    /**
+     * Called once for every transaction that failed, after any retries.
+     */
+    void transactionFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * @return The number of transactions started.
+     */
+    long getTransactions() {
+        return transactions.get();
+    }
+
+    /**
+     * @return The number of transactions that failed, after any retries.
+     */
+    long getFailed() {
+        return failed.get();
+    }
+
+    private long backoffNanos(int attempt) {
+        long backoff = baseBackoffMillis << Math.min(attempt - 1, 20);
+        return Math.min(backoff, maxBackoffMillis) * 1_000_000;
+    }
+
+    /**
+     * @return A string representation of the counters of this policy.
+     */
+    @Override
+    public String toString() {
+        return "Transactions: " + transactions.get()
+                + " | Retries: " + retries.get()
+                + " (serialization: " + serializationRetries.get()
+                + ", deadlock: " + deadlockRetries.get()
+                + ", connection: " + connectionRetries.get() + ")"
+                + " | Gave up: " + exhausted.get()
+                + " | Failed: " + failed.get();
+    }
+}
@@ -0,0 +1,155 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Brings the schema of the SoundGood database up to date. The migrations are
+ * SQL scripts in <code>src/main/resources/db/migration</code>, named
+ * <code>V&lt;version&gt;__&lt;description&gt;.sql</code>, and are applied in
+ * version order. Each applied migration is recorded in the table
+ * <code>schema_version</code> together with a checksum of its script, so that
+ * every migration is applied exactly once, and so that a script that is
+ * changed after it has been applied is detected.
+ * 
+ * New migrations are added by creating a new script and adding its name last
+ * in <code>MIGRATIONS</code>. An applied script must never be changed.
+ */
+class SchemaMigrator {
+    private static final String MIGRATION_DIR = "/db/migration/";
+    private static final String[] MIGRATIONS = {
+            "V1__soundgood_schema.sql",
+            "V2__indexes.sql",
+            "V3__billing.sql",
+            "V4__rental_period.sql",
+            "V5__sites.sql",
+            "V6__rental_changes.sql",
+            "V7__rental_expiry.sql",
+            "V8__rental_outbox.sql",
+            "V9__catalog_version.sql",
+    };
+    /**
+     * An arbitrary key for the advisory lock that keeps two instances that start
+     * at the same time from applying the same migration.
+     */
+    private static final long MIGRATION_LOCK_KEY = 0x536f756e64476f6fL;
+
+    private final Connection connection;
+
+    /**
+     * @param connection The connection used to migrate. Must not be in auto
+     *                   commit mode.
+     */
+    SchemaMigrator(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Applies all migrations that have not yet been applied, each in its own
+     * transaction.
+     * 
+     * @return The names of the applied migrations, empty if the schema was
+     *         already up to date.
+     * @throws SQLException If a migration failed, or an applied migration has
+     *                      been changed.
+     */
+    List<String> migrate() throws SQLException {
+        List<String> applied = new ArrayList<>();
+        try {
+            lockAndCreateVersionTable();
+            Map<Integer, Long> appliedChecksums = readAppliedChecksums();
+            connection.commit();
+            for (String migration : MIGRATIONS) {
+                int version = versionOf(migration);
+                String script = readScript(migration);
+                long checksum = checksumOf(script);
+                Long appliedChecksum = appliedChecksums.get(version);
+                if (appliedChecksum != null) {
+                    if (appliedChecksum != checksum) {
+                        throw new SQLException("Migration " + migration + " has been changed after it was applied.");
+                    }
+                    continue;
+                }
+                lockAndCreateVersionTable();
+                if (readAppliedChecksums().containsKey(version)) {
+                    connection.commit();
+                    continue;
+                }
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(script);
+                }
+                recordMigration(version, migration, checksum);
+                connection.commit();
+                applied.add(migration);
+            }
+            return applied;
+        } catch (SQLException sqle) {
+            connection.rollback();
+            throw sqle;
+        }
+    }
+
+    private void lockAndCreateVersionTable() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK_KEY + ")");
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version" +
+                    " (version INT PRIMARY KEY," +
+                    " script VARCHAR(200) NOT NULL," +
+                    " checksum BIGINT NOT NULL," +
+                    " applied_at TIMESTAMPTZ NOT NULL DEFAULT now())");
+        }
+    }
+
+    private Map<Integer, Long> readAppliedChecksums() throws SQLException {
+        Map<Integer, Long> checksums = new HashMap<>();
+        try (Statement stmt = connection.createStatement();
+                ResultSet result = stmt.executeQuery("SELECT version, checksum FROM schema_version")) {
+            while (result.next()) {
+                checksums.put(result.getInt("version"), result.getLong("checksum"));
+            }
+        }
+        return checksums;
+    }
+
+    private void recordMigration(int version, String migration, long checksum) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO schema_version (version, script, checksum) VALUES (?, ?, ?)")) {
+            stmt.setInt(1, version);
+            stmt.setString(2, migration);
+            stmt.setLong(3, checksum);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static int versionOf(String migration) {
+        return Integer.parseInt(migration.substring(1, migration.indexOf("__")));
+    }
+
+    private static long checksumOf(String script) {
+        CRC32 crc = new CRC32();
+        crc.update(script.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static String readScript(String migration) throws SQLException {
+        try (InputStream in = SchemaMigrator.class.getResourceAsStream(MIGRATION_DIR + migration)) {
+            if (in == null) {
+                throw new SQLException("Migration " + migration + " is missing from the class path.");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException ioe) {
+            throw new SQLException("Could not read migration " + migration + ".", ioe);
+        }
+    }
+}
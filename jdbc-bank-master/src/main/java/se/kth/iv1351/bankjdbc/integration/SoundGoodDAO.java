@@ -6,11 +6,32 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.ExpirySweep;
 import se.kth.iv1351.bankjdbc.model.Instrument;
 import se.kth.iv1351.bankjdbc.model.InstrumentDTO;
+import se.kth.iv1351.bankjdbc.model.InstrumentQuery;
+import se.kth.iv1351.bankjdbc.model.Invoice;
+import se.kth.iv1351.bankjdbc.model.InvoiceLine;
+import se.kth.iv1351.bankjdbc.model.Rental;
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+import se.kth.iv1351.bankjdbc.model.SearchResult;
+import se.kth.iv1351.bankjdbc.model.SlowQuery;
+import se.kth.iv1351.bankjdbc.model.StoreHealth;
+import se.kth.iv1351.bankjdbc.model.TypeAvailability;
 
 /**
  * This data access object (DAO) encapsulates all database calls in the
@@ -18,39 +39,260 @@ import se.kth.iv1351.bankjdbc.model.InstrumentDTO;
  * application. No code outside this class shall have any knowledge about the
  * database.
  */
-public class SoundGoodDAO {
+public class SoundGoodDAO implements SoundGoodStore {
+    /**
+     * Marks where the site predicate goes in the catalog queries. Each of them is
+     * prepared twice, once for all sites and once for a single site, see
+     * prepareForSite(). The single site variant only touches the partitions of
+     * that site, see V5__sites.sql, and takes the site as the parameter after
+     * those of the WHERE clause.
+     */
+    private static final String SITE_PREDICATE = "{site}";
+    /**
+     * The search text of an instrument, matched by searchInstruments(). The
+     * expression is indexed with a pg_trgm GIN index, see
+     * V2__indexes.sql.
+     */
+    private static final String SEARCH_TEXT = "lower(i.type_of_instrument || ' ' || i.instrument_brand)";
+    /**
+     * The FROM and WHERE clauses shared by the search and the facet count
+     * queries. Matches instruments whose search text contains the searched text,
+     * or contains words similar to it, in the price range, and that are not
+     * rented out.
+     */
+    private static final String SEARCH_MATCHES = "" +
+            " FROM instrument i" +
+            " WHERE (" + SEARCH_TEXT + " LIKE '%' || ? || '%' OR ? <% " + SEARCH_TEXT + ")" +
+            " AND i.instrument_price BETWEEN ? AND ?" +
+            " AND NOT EXISTS (SELECT 1 FROM rentingInstrument r" +
+            " WHERE r.instrument_id = i.instrument_id AND r.site = i.site" +
+            " AND r.rental_period @> current_date)" +
+            SITE_PREDICATE;
+    private static final String DB_URL = "jdbc:postgresql://localhost:5432/soundgood?reWriteBatchedInserts=true";
+    private static final String DB_USER = "postgres";
+    private static final String DB_PASSWORD = "example";
+    private static final int PROFILED_SAMPLES = 10;
+    /**
+     * The number of rows fetched at a time when the whole catalog is read, so
+     * that a large catalog is not held twice in memory.
+     */
+    private static final int CATALOG_FETCH_SIZE = 10_000;
+    /**
+     * How long <code>close()</code> lets running operations finish before it
+     * cancels their statements, and how long it then waits for them to give up.
+     */
+    private static final long DRAIN_MILLIS = 5000;
+    private static final long CANCEL_GRACE_MILLIS = 1000;
+    /**
+     * How long an interactive operation may wait for the connection before it
+     * is rejected, <code>soundgood.db.maxQueueMillis</code>, 200 ms by default.
+     */
+    public static final long INTERACTIVE_QUEUE_MILLIS = Long.getLong("soundgood.db.maxQueueMillis", 200);
+    /**
+     * How long an operation of a background job, e.g. the expiry sweeper, the
+     * outbox relay or billing, may wait for its connection,
+     * <code>soundgood.db.backgroundQueueMillis</code>, 2000 ms by default. The
+     * background jobs do not wait for a user, and have a connection of their own
+     * so that they do not hold up interactive operations.
+     */
+    public static final long BACKGROUND_QUEUE_MILLIS = Long.getLong("soundgood.db.backgroundQueueMillis", 2000);
 
-    private Connection connection;
+    private volatile Connection connection;
     private PreparedStatement findAccountByNameStmt;
 
     private PreparedStatement addRental;
     private PreparedStatement terminateRental;
     private PreparedStatement checkStudentRentalsStmt;
     private PreparedStatement checkInstrumentRentalStmt;
+    private PreparedStatement listSitesStmt;
     private PreparedStatement listInstrumentStmt;
+    private PreparedStatement listInstrumentAtSiteStmt;
     private PreparedStatement listAllInstrumentsStmt;
+    private PreparedStatement listAllInstrumentsAtSiteStmt;
+    private PreparedStatement countAvailableByTypeStmt;
+    private PreparedStatement countAvailableByTypeAtSiteStmt;
+    private PreparedStatement findAvailableStmt;
+    private PreparedStatement findAvailableAtSiteStmt;
+    private PreparedStatement findRentalsByStudentStmt;
+    private PreparedStatement searchInstrumentsStmt;
+    private PreparedStatement searchInstrumentsAtSiteStmt;
+    private PreparedStatement countSearchFacetsStmt;
+    private PreparedStatement countSearchFacetsAtSiteStmt;
+    private PreparedStatement findRentalsForBillingStmt;
+    private PreparedStatement storeInvoiceStmt;
+    private PreparedStatement storeInvoiceLineStmt;
+    private PreparedStatement deleteInvoiceLinesStmt;
+    private PreparedStatement catalogVersionStmt;
+    private PreparedStatement listCatalogStmt;
+    private PreparedStatement findActiveRentalsStmt;
+    private PreparedStatement findRentalChangesStmt;
+    private PreparedStatement sweepExpiringRentalsStmt;
+    private PreparedStatement readRentalEventsStmt;
+    private PreparedStatement deleteRentalEventsStmt;
+    private PreparedStatement probeStmt;
 
+    private final RetryPolicy retryPolicy = new RetryPolicy();
     /**
-     * Constructs a new DAO object connected to the SoundGood database.
+     * There is only one connection, so only one operation at a time may use it.
+     * Others wait at most the maximum queueing time before they are rejected.
+     */
+    private final OperationLimiter limiter;
+    private final StudentRentalCache studentRentalCache = new StudentRentalCache();
+    private final InstrumentListCache instrumentListCache = new InstrumentListCache();
+    private final AttributeDictionary attributes = new AttributeDictionary();
+    private final QueryProfiler profiler = new QueryProfiler(
+            () -> DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD), PROFILED_SAMPLES);
+    private Deadline currentDeadline;
+    /**
+     * The slow statements of the running transaction, passed to the profiler
+     * once it is committed.
+     */
+    private final List<SlowStatement> slowStatements = new ArrayList<>();
+    private volatile PreparedStatement inFlightStmt;
+
+    /**
+     * A unit of work that is run inside a transaction by
+     * <code>transaction()</code>. It may be run more than once if the
+     * transaction has to be retried, and must therefore not have any side effects
+     * outside the database.
+     */
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * A rental created or terminated by a transaction, whose cache entries are
+     * invalidated once the transaction is committed.
+     */
+    private record ChangedRental(int student_id, String site, String instrument_type) {
+    }
+
+    /**
+     * A statement of the running transaction that was slower than the profiling
+     * threshold.
+     */
+    private record SlowStatement(String boundStatement, long elapsedNanos) {
+    }
+
+    /**
+     * Constructs a new DAO object connected to the SoundGood database, for
+     * interactive operations, and applies any schema migrations the database is
+     * missing.
      */
     public SoundGoodDAO() throws SoundGoodException {
+        this(INTERACTIVE_QUEUE_MILLIS);
+    }
+
+    /**
+     * Constructs a new DAO object with a connection of its own to the SoundGood
+     * database, and applies any schema migrations the database is missing.
+     * 
+     * @param maxQueueMillis The longest time an operation may wait for the
+     *                       connection before it is rejected, e.g.
+     *                       <code>BACKGROUND_QUEUE_MILLIS</code> for the
+     *                       background jobs.
+     */
+    public SoundGoodDAO(long maxQueueMillis) throws SoundGoodException {
+        this.limiter = new OperationLimiter(1, maxQueueMillis);
         try {
-            System.out.println("Connecting to SoundGood.....");
+            EventLog.info("db.connecting");
             connectToSoundGoodDB();
-            prepareStatements();
         } catch (ClassNotFoundException | SQLException exception) {
             throw new SoundGoodException("Could not connect to datasource.", exception);
         }
+        try {
+            for (String migration : new SchemaMigrator(connection).migrate()) {
+                EventLog.info("migration.applied", "migration", migration);
+            }
+        } catch (SQLException exception) {
+            closeQuietly(connection);
+            throw new SoundGoodException("Could not migrate the SoundGood schema.", exception);
+        }
+        try {
+            prepareStatements();
+        } catch (SQLException exception) {
+            closeQuietly(connection);
+            throw new SoundGoodException("Could not connect to datasource.", exception);
+        }
+    }
+
+    /**
+     * Shuts the DAO down. New operations are rejected, running operations get
+     * <code>DRAIN_MILLIS</code> to finish, after which their statements are
+     * cancelled. Then any open transaction is rolled back, and the statements and
+     * connections are closed, so that no session is left behind in the
+     * database. Calling it again has no effect.
+     */
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        boolean drained = limiter.drain(DRAIN_MILLIS);
+        if (!drained) {
+            cancelInFlight();
+            drained = limiter.drain(CANCEL_GRACE_MILLIS);
+        }
+        profiler.close();
+        rollbackQuietly();
+        for (PreparedStatement stmt : new PreparedStatement[] { addRental, terminateRental,
+                checkStudentRentalsStmt, checkInstrumentRentalStmt, listSitesStmt, listInstrumentStmt,
+                listInstrumentAtSiteStmt, listAllInstrumentsStmt, listAllInstrumentsAtSiteStmt, countAvailableByTypeStmt,
+                countAvailableByTypeAtSiteStmt, findAvailableStmt,
+                findAvailableAtSiteStmt, findRentalsByStudentStmt, searchInstrumentsStmt,
+                searchInstrumentsAtSiteStmt, countSearchFacetsStmt, countSearchFacetsAtSiteStmt,
+                findRentalsForBillingStmt, storeInvoiceStmt, storeInvoiceLineStmt, deleteInvoiceLinesStmt,
+                catalogVersionStmt,
+                listCatalogStmt, findActiveRentalsStmt, findRentalChangesStmt,
+                sweepExpiringRentalsStmt,
+                readRentalEventsStmt, deleteRentalEventsStmt, probeStmt }) {
+            closeQuietly(stmt);
+        }
+        closeQuietly(connection);
+        connection = null;
+        EventLog.info("db.closed", "drained", drained,
+                "millis", (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    private static void closeQuietly(AutoCloseable resource) {
+        if (resource == null) {
+            return;
+        }
+        try {
+            resource.close();
+        } catch (Exception ignored) {
+            // Shutting down, there is nothing more to do with it.
+        }
     }
 
     private void connectToSoundGoodDB() throws ClassNotFoundException, SQLException {
-        connection = DriverManager.getConnection("jdbc:postgresql://localhost:5432/soundgood",
-                "postgres", "example");
-        System.out.println("Connected!");
+        connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        EventLog.info("db.connected");
         // connection =
         // DriverManager.getConnection("jdbc:mysql://localhost:3306/bankdb",
         // "mysql", "mysql");
         connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    }
+
+    /**
+     * Replaces a connection that has been lost with a new one. Called by
+     * <code>transaction()</code> before retrying a transaction that failed
+     * because of a connection exception.
+     */
+    private void reconnect() throws SQLException {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // The old connection is already broken, nothing more to do with it.
+        }
+        try {
+            connectToSoundGoodDB();
+        } catch (ClassNotFoundException cnfe) {
+            throw new SQLException("Could not reconnect to SoundGood.", "08001", cnfe);
+        }
+        prepareStatements();
     }
 
     /**
@@ -74,33 +316,83 @@ public class SoundGoodDAO {
     private void prepareStatements() throws SQLException {
         /**
          * Used in printListInstrument()
-         * Finds all instruments where the type of instrument is x and the instrument is
-         * not being registered as rented in rentingInstruments.
+         * Finds all instruments, ignoring case, where the type of instrument is x
+         * and the instrument is not being registered as rented in
+         * rentingInstruments.
          * 2022-01-09 "The previous SQl querie only searched if instrument was NOT in
          * rentingInstrument, even if the rental had expired. Now changed to search NOT
          * (instrument exist in rentingInstruments and current_date is inbetween
          * from_to_date"
+         * The rental periods are now compared as ranges, rental_period @>
+         * current_date, which is answered by the GiST index of the
+         * rentinginstrument_no_overlap constraint, see V4__rental_period.sql.
+         * The rentals are looked up in the partition of the instrument's site.
          */
-        listInstrumentStmt = connection.prepareStatement("" +
+        String listInstrument = "" +
                 "SELECT *" +
-                " FROM instrument" +
-                " WHERE type_of_instrument = ? AND instrument_id" +
-                " NOT IN (SELECT rentingInstrument.instrument_id" +
-                " FROM rentingInstrument" +
-                " INNER JOIN instrument ON rentingInstrument.instrument_id = instrument.instrument_id" +
-                " AND current_date > from_date" +
-                " AND current_date < to_date)");
+                " FROM instrument i" +
+                " WHERE lower(i.type_of_instrument) = lower(?)" +
+                " AND NOT EXISTS (SELECT 1 FROM rentingInstrument r" +
+                " WHERE r.instrument_id = i.instrument_id AND r.site = i.site" +
+                " AND r.rental_period @> current_date)" +
+                SITE_PREDICATE;
+        listInstrumentStmt = prepareForSite(listInstrument, false);
+        listInstrumentAtSiteStmt = prepareForSite(listInstrument, true);
         /**
          * Prints all instruments, that are not being rented out
          * used in printListAllInstruments()
          */
-        listAllInstrumentsStmt = connection.prepareStatement("" +
-                " SELECT * FROM instrument WHERE instrument_id" +
-                " NOT IN (SELECT rentingInstrument.instrument_id" +
-                " FROM rentingInstrument" +
-                " INNER JOIN instrument ON rentingInstrument.instrument_id = instrument.instrument_id" +
-                " AND current_date > from_date" +
-                " AND current_date < to_date);");
+        String listAllInstruments = "" +
+                " SELECT * FROM instrument i" +
+                " WHERE NOT EXISTS (SELECT 1 FROM rentingInstrument r" +
+                " WHERE r.instrument_id = i.instrument_id AND r.site = i.site" +
+                " AND r.rental_period @> current_date)" +
+                SITE_PREDICATE +
+                " ORDER BY i.instrument_id";
+        listAllInstrumentsStmt = prepareForSite(listAllInstruments, false);
+        listAllInstrumentsAtSiteStmt = prepareForSite(listAllInstruments, true);
+        /**
+         * The number of available instruments of each type, and the cheapest of
+         * them, in one scan. Both window functions are computed over the same
+         * partition and order, so the available instruments are sorted once.
+         * Only the top_n cheapest of each type are returned.
+         * Used in countAvailableByType()
+         */
+        String countAvailableByType = "" +
+                "SELECT * FROM (" +
+                " SELECT i.*," +
+                " COUNT(*) OVER types AS available," +
+                " ROW_NUMBER() OVER (types ORDER BY i.instrument_price, i.instrument_id) AS price_rank" +
+                " FROM instrument i" +
+                " WHERE NOT EXISTS (SELECT 1 FROM rentingInstrument r" +
+                " WHERE r.instrument_id = i.instrument_id AND r.site = i.site" +
+                " AND r.rental_period @> current_date)" +
+                SITE_PREDICATE +
+                " WINDOW types AS (PARTITION BY i.type_of_instrument)) ranked" +
+                " WHERE price_rank <= ?" +
+                " ORDER BY available DESC, type_of_instrument, price_rank";
+        countAvailableByTypeStmt = prepareForSite(countAvailableByType, false);
+        countAvailableByTypeAtSiteStmt = prepareForSite(countAvailableByType, true);
+        /**
+         * Finds all instruments of a type, ignoring case, that are not rented
+         * during any day of a period, [from, to). Used for advance bookings.
+         * used in findAvailable()
+         */
+        String findAvailable = "" +
+                "SELECT *" +
+                " FROM instrument i" +
+                " WHERE lower(i.type_of_instrument) = lower(?)" +
+                " AND NOT EXISTS (SELECT 1 FROM rentingInstrument r" +
+                " WHERE r.instrument_id = i.instrument_id AND r.site = i.site" +
+                " AND r.rental_period && daterange(?, ?))" +
+                SITE_PREDICATE +
+                " ORDER BY i.instrument_id";
+        findAvailableStmt = prepareForSite(findAvailable, false);
+        findAvailableAtSiteStmt = prepareForSite(findAvailable, true);
+        /**
+         * Lists the sites, used in listSites()
+         */
+        listSitesStmt = connection.prepareStatement("SELECT site FROM site ORDER BY site");
 
         /**
          * Counts amount of rentals by a student where to_date is greater than
@@ -117,28 +409,239 @@ public class SoundGoodDAO {
          * Used in checkInstrumentRental()
          */
         checkInstrumentRentalStmt = connection.prepareStatement("" +
-                " SELECT COUNT(*) FROM instrument" +
-                " WHERE instrument.instrument_id = ? AND instrument.instrument_id NOT IN" +
-                " (SELECT instrument_id FROM rentingInstrument" +
-                " WHERE CURRENT_DATE <= to_date AND  CURRENT_DATE >= from_date)");
+                " SELECT COUNT(*) FROM instrument i" +
+                " WHERE i.instrument_id = ? AND NOT EXISTS" +
+                " (SELECT 1 FROM rentingInstrument r" +
+                " WHERE r.instrument_id = i.instrument_id AND r.site = i.site" +
+                " AND r.rental_period @> CURRENT_DATE)");
         /**
          * Registers a new rental to rentingInstruments with the request of student_id,
          * with requested instrument_id. from_date is set to current_date and default
-         * to_date is set one year ahead.
+         * to_date is set one year ahead. The rental is stored at the site of the
+         * instrument, and a rented event is added to the outbox. Returns the site
+         * and type of the rented instrument.
          * Used in rentInstrument()
          */
         addRental = connection.prepareStatement("" +
-                "INSERT INTO rentingInstrument Values" +
-                "(?, ?, CURRENT_DATE, CURRENT_DATE + 365);");
+                "WITH rental AS (" +
+                " INSERT INTO rentingInstrument (site, student_id, instrument_id, from_date, to_date)" +
+                " SELECT i.site, ?, i.instrument_id, CURRENT_DATE, CURRENT_DATE + 365" +
+                " FROM instrument i WHERE i.instrument_id = ?" +
+                " RETURNING site, instrument_id, student_id, from_date, to_date)," +
+                " event AS (" +
+                " INSERT INTO rental_event (event_type, student_id, instrument_id, site, from_date, to_date)" +
+                " SELECT 'rented', student_id, instrument_id, site, from_date, to_date FROM rental)" +
+                " SELECT i.site, i.type_of_instrument" +
+                " FROM rental INNER JOIN instrument i USING (instrument_id, site)");
         /**
          * Terminates rental by changing the to_date to current_date. Ends rental ahead
-         * of default to_date.
+         * of default to_date. Only the active rental is changed, earlier rentals of
+         * the same instrument keep their to_date. changed_at is set so that the
+         * termination is replayed by findRentalChangesSince(), and closed_at so
+         * that the expiry sweeper leaves the rental alone. A terminated event is
+         * added to the outbox. Returns the student whose rental
+         * was terminated, and the site and type of the instrument.
          * used in terminateRental()
          */
         terminateRental = connection.prepareStatement("" +
-                "UPDATE rentingInstrument" +
-                " SET to_date = CURRENT_DATE" +
-                " WHERE instrument_ID = ?;");
+                "WITH ended AS (" +
+                " UPDATE rentingInstrument r" +
+                " SET to_date = CURRENT_DATE, changed_at = now(), closed_at = now()" +
+                " FROM instrument i" +
+                " WHERE r.instrument_ID = ? AND r.to_date > CURRENT_DATE" +
+                " AND i.instrument_id = r.instrument_id AND i.site = r.site" +
+                " RETURNING r.student_id, r.instrument_id, i.site, r.from_date, r.to_date, i.type_of_instrument)," +
+                " event AS (" +
+                " INSERT INTO rental_event (event_type, student_id, instrument_id, site, from_date, to_date)" +
+                " SELECT 'terminated', student_id, instrument_id, site, from_date, to_date FROM ended)" +
+                " SELECT student_id, site, type_of_instrument FROM ended");
+        /**
+         * Lists all rentals, active and past, of a student together with the rented
+         * instruments. The rentals are found with the index on
+         * rentingInstrument(student_id, to_date), see
+         * V2__indexes.sql.
+         * Used in findRentalsByStudent()
+         */
+        findRentalsByStudentStmt = connection.prepareStatement("" +
+                "SELECT r.student_id, r.from_date, r.to_date, i.instrument_id, i.site," +
+                " i.type_of_instrument, i.instrument_brand, i.instrument_price" +
+                " FROM rentingInstrument r" +
+                " INNER JOIN instrument i ON i.instrument_id = r.instrument_id AND i.site = r.site" +
+                " WHERE r.student_id = ?" +
+                " ORDER BY r.to_date DESC");
+        /**
+         * The best matching available instruments, ranked by how similar their type
+         * and brand are to the searched text.
+         * Used in searchInstruments()
+         */
+        String searchInstruments = "" +
+                "SELECT i.instrument_id, i.site, i.type_of_instrument, i.instrument_brand, i.instrument_price," +
+                " word_similarity(?, " + SEARCH_TEXT + ") AS score" +
+                SEARCH_MATCHES +
+                " ORDER BY score DESC, i.instrument_id" +
+                " LIMIT ?";
+        searchInstrumentsStmt = prepareForSite(searchInstruments, false);
+        searchInstrumentsAtSiteStmt = prepareForSite(searchInstruments, true);
+        /**
+         * The number of matching instruments of each type and of each brand,
+         * computed in one pass with grouping sets. by_brand is 1 for the brand
+         * counts.
+         * Used in searchInstruments()
+         */
+        String countSearchFacets = "" +
+                "SELECT i.type_of_instrument, i.instrument_brand, COUNT(*) AS matches," +
+                " GROUPING(i.type_of_instrument) AS by_brand" +
+                SEARCH_MATCHES +
+                " GROUP BY GROUPING SETS ((i.type_of_instrument), (i.instrument_brand))" +
+                " ORDER BY matches DESC, i.type_of_instrument, i.instrument_brand";
+        countSearchFacetsStmt = prepareForSite(countSearchFacets, false);
+        countSearchFacetsAtSiteStmt = prepareForSite(countSearchFacets, true);
+        /**
+         * One page of rentals to bill. The subquery picks the next students, in id
+         * order, that rented anything during the month, using the index on
+         * rentingInstrument(student_id, to_date). The outer query reads all their
+         * rentals overlapping the month.
+         * Used in findRentalsForBilling()
+         */
+        findRentalsForBillingStmt = connection.prepareStatement("" +
+                "SELECT r.student_id, r.from_date, r.to_date, i.instrument_id, i.site," +
+                " i.type_of_instrument, i.instrument_brand, i.instrument_price" +
+                " FROM rentingInstrument r" +
+                " INNER JOIN instrument i ON i.instrument_id = r.instrument_id AND i.site = r.site" +
+                " WHERE r.student_id IN (SELECT DISTINCT student_id FROM rentingInstrument" +
+                " WHERE student_id > ? AND from_date < ? AND to_date > ?" +
+                " ORDER BY student_id LIMIT ?)" +
+                " AND r.from_date < ? AND r.to_date > ?" +
+                " ORDER BY r.student_id");
+        /**
+         * Stores an invoice, replacing the earlier invoice of the same student and
+         * month. Executed in batches.
+         * Used in storeInvoices()
+         */
+        storeInvoiceStmt = connection.prepareStatement("" +
+                "INSERT INTO invoice (student_id, billing_month, total)" +
+                " VALUES (?, ?, ?)" +
+                " ON CONFLICT (student_id, billing_month) DO UPDATE SET total = EXCLUDED.total");
+        storeInvoiceLineStmt = connection.prepareStatement("" +
+                "INSERT INTO invoice_line (student_id, billing_month, instrument_id, site, days, amount)" +
+                " VALUES (?, ?, ?, ?, ?, ?)" +
+                " ON CONFLICT (student_id, billing_month, instrument_id)" +
+                " DO UPDATE SET days = EXCLUDED.days, amount = EXCLUDED.amount");
+        /**
+         * Removes the lines of an earlier invoice of the same student and month
+         * for instruments that are not on the new invoice. Executed in batches.
+         * Used in storeInvoices()
+         */
+        deleteInvoiceLinesStmt = connection.prepareStatement("" +
+                "DELETE FROM invoice_line" +
+                " WHERE student_id = ? AND billing_month = ? AND instrument_id <> ALL (?)");
+        /**
+         * The time the catalog is read at, the start of the transaction, and its
+         * version. Rentals changed later have a later changed_at.
+         * Used in readCatalogState() and readCatalogVersion()
+         */
+        catalogVersionStmt = connection.prepareStatement(
+                "SELECT now() AS taken_at, version FROM catalog_version");
+        /**
+         * All instruments, rented or not, and all rentals that have not ended.
+         * Used in readCatalogState()
+         */
+        listCatalogStmt = connection.prepareStatement("SELECT * FROM instrument i ORDER BY i.instrument_id");
+        listCatalogStmt.setFetchSize(CATALOG_FETCH_SIZE);
+        findActiveRentalsStmt = connection.prepareStatement("" +
+                "SELECT r.student_id, r.from_date, r.to_date, i.instrument_id, i.site," +
+                " i.type_of_instrument, i.instrument_brand, i.instrument_price" +
+                " FROM rentingInstrument r" +
+                " INNER JOIN instrument i ON i.instrument_id = r.instrument_id AND i.site = r.site" +
+                " WHERE r.to_date > current_date");
+        findActiveRentalsStmt.setFetchSize(CATALOG_FETCH_SIZE);
+        /**
+         * The rentals made or terminated after a point in time, found with the
+         * index on rentingInstrument(changed_at), see V6__rental_changes.sql.
+         * Used in findRentalChangesSince()
+         */
+        findRentalChangesStmt = connection.prepareStatement("" +
+                "SELECT r.student_id, r.from_date, r.to_date, i.instrument_id, i.site," +
+                " i.type_of_instrument, i.instrument_brand, i.instrument_price" +
+                " FROM rentingInstrument r" +
+                " INNER JOIN instrument i ON i.instrument_id = r.instrument_id AND i.site = r.site" +
+                " WHERE r.changed_at > ?" +
+                " ORDER BY r.changed_at");
+        /**
+         * The oldest events in the outbox, and the removal of delivered events.
+         * Used in readRentalEvents() and acknowledgeRentalEvents()
+         */
+        readRentalEventsStmt = connection.prepareStatement("" +
+                "SELECT event_id, event_type, student_id, instrument_id, site, from_date, to_date, created_at" +
+                " FROM rental_event ORDER BY event_id LIMIT ?");
+        deleteRentalEventsStmt = connection.prepareStatement("DELETE FROM rental_event WHERE event_id = ANY (?)");
+        /**
+         * A round trip that reads no table.
+         * Used in probe()
+         */
+        probeStmt = connection.prepareStatement("SELECT 1");
+        /**
+         * Marks one batch of open rentals that expire within some days, or have
+         * expired, and creates their reminders, in one statement. due is found
+         * with the partial index on the open rentals' to_date, see
+         * V7__rental_expiry.sql, and skips rentals locked by a concurrent END.
+         * A rental that has expired is closed, one that expires soon is only
+         * marked as reminded. A reminder that already exists is not created
+         * again. Each closed rental adds an expired event to the outbox.
+         * Used in sweepExpiringRentals()
+         */
+        sweepExpiringRentalsStmt = connection.prepareStatement("" +
+                "WITH due AS (" +
+                " SELECT rental_id, site FROM rentingInstrument" +
+                " WHERE closed_at IS NULL AND to_date <= current_date + ?" +
+                " AND (reminded_at IS NULL OR to_date <= current_date)" +
+                " ORDER BY to_date LIMIT ? FOR UPDATE SKIP LOCKED)," +
+                " marked AS (" +
+                " UPDATE rentingInstrument r" +
+                " SET reminded_at = COALESCE(r.reminded_at, now())," +
+                " closed_at = CASE WHEN r.to_date <= current_date THEN now() END" +
+                " FROM due WHERE r.rental_id = due.rental_id AND r.site = due.site" +
+                " RETURNING r.rental_id, r.site, r.student_id, r.instrument_id, r.from_date, r.to_date," +
+                " CASE WHEN r.to_date <= current_date THEN 'expired' ELSE 'expiring' END AS kind)," +
+                " reminded AS (" +
+                " INSERT INTO rental_reminder (rental_id, site, student_id, instrument_id, to_date, kind)" +
+                " SELECT rental_id, site, student_id, instrument_id, to_date, kind FROM marked" +
+                " ON CONFLICT DO NOTHING" +
+                " RETURNING kind)," +
+                " event AS (" +
+                " INSERT INTO rental_event (event_type, student_id, instrument_id, site, from_date, to_date)" +
+                " SELECT 'expired', student_id, instrument_id, site, from_date, to_date FROM marked" +
+                " WHERE kind = 'expired')" +
+                " SELECT (SELECT COUNT(*) FROM marked) AS swept," +
+                " COUNT(*) FILTER (WHERE kind = 'expiring') AS expiring," +
+                " COUNT(*) FILTER (WHERE kind = 'expired') AS expired" +
+                " FROM reminded");
+    }
+
+    /**
+     * Prepares a catalog query, see <code>SITE_PREDICATE</code>.
+     *
+     * @param sql    The query, with the site predicate marked.
+     * @param atSite <code>true</code> to prepare the variant for one site.
+     */
+    private PreparedStatement prepareForSite(String sql, boolean atSite) throws SQLException {
+        return connection.prepareStatement(sql.replace(SITE_PREDICATE, atSite ? " AND i.site = ?" : ""));
+    }
+
+    /**
+     * Binds the site parameter of a catalog query, if the query is for one site.
+     *
+     * @param stmt  The variant prepared for the site, or for all sites.
+     * @param index The index of the site parameter.
+     * @param site  The site, <code>null</code> for all sites.
+     * @return The index of the parameter after the site parameter.
+     */
+    private static int bindSite(PreparedStatement stmt, int index, String site) throws SQLException {
+        if (site == null) {
+            return index;
+        }
+        stmt.setString(index, site);
+        return index + 1;
     }
 
     /**
@@ -146,61 +649,199 @@ public class SoundGoodDAO {
      * Checks if the entered type of instrument exists in table "instrument"
      * && if the instrument ID is NOT in rentingInstrument.
      * 
+     * The result is cached per type for a few seconds, or until an instrument of
+     * the type is rented or returned, see <code>InstrumentListCache</code>.
+     * 
      * @param instrument_type
+     * @param site            The only site to list, <code>null</code> for all
+     *                        sites.
+     * @param deadline        When the operation must be finished.
      * @return Returns List<Instrument> with the available instruments with the
      *         columns;
-     *         [instruments_id, instrument_type, instrument_brand, instrument_price]
+     *         [instruments_id, instrument_type, instrument_brand, instrument_price,
+     *         site]
      * @throws SoundGoodException
      */
-    public List<Instrument> printListInstrument(String instrument_type) throws SoundGoodException {
+    public List<Instrument> printListInstrument(String instrument_type, String site, Deadline deadline)
+            throws SoundGoodException {
+        List<Instrument> cached = instrumentListCache.get(site, instrument_type);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = instrumentListCache.generation();
         String failureMsg = "Could not search for specified instrument :(";
-        ResultSet result = null;
-        List<Instrument> instruments = new ArrayList<>();
-        try {
-            listInstrumentStmt.setString(1, instrument_type);
-            result = listInstrumentStmt.executeQuery();
-            while (result.next()) {
-                instruments.add(new Instrument(
-                        result.getInt("instrument_id"),
-                        result.getString("type_of_instrument"),
-                        result.getString("instrument_brand"),
-                        result.getInt("instrument_price")));
+        List<Instrument> found = transaction(failureMsg, deadline, () -> {
+            PreparedStatement stmt = site == null ? listInstrumentStmt : listInstrumentAtSiteStmt;
+            stmt.setString(1, instrument_type);
+            bindSite(stmt, 2, site);
+            try (ResultSet result = executeQuery(stmt)) {
+                return readInstruments(result);
             }
-            commit(); // replace with method commit();
-        } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
-        } finally {
-            closeResultSet(failureMsg, result);
-        }
-        return instruments;
+        });
+        instrumentListCache.put(site, instrument_type, found, generation);
+        return found;
+    }
+
+    /**
+     * Lists the names of all sites.
+     * 
+     * @param deadline When the operation must be finished.
+     * @return The sites in alphabetical order.
+     * @throws SoundGoodException
+     */
+    public List<String> listSites(Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not list the sites.";
+        return transaction(failureMsg, deadline, () -> {
+            List<String> sites = new ArrayList<>();
+            try (ResultSet result = executeQuery(listSitesStmt)) {
+                while (result.next()) {
+                    sites.add(result.getString("site"));
+                }
+            }
+            return sites;
+        });
     }
 
     /**
      * Default list, lists all available instruments.
      * 
+     * @param site     The only site to list, <code>null</code> for all sites.
+     * @param deadline When the operation must be finished.
      * @return list of all available instruments of all types.
      * @throws SoundGoodException
      */
-    public List<Instrument> printListAllInstruments() throws SoundGoodException {
+    public List<Instrument> printListAllInstruments(String site, Deadline deadline) throws SoundGoodException {
         String failureMsg = "Could not list all rentable instruments.";
-        ResultSet result = null;
-        List<Instrument> instruments = new ArrayList<>();
-        try {
-            result = listAllInstrumentsStmt.executeQuery();
-            while (result.next()) {
-                instruments.add(new Instrument(
-                        result.getInt("instrument_id"),
-                        result.getString("type_of_instrument"),
-                        result.getString("instrument_brand"),
-                        result.getInt("instrument_price")));
+        return transaction(failureMsg, deadline, () -> {
+            PreparedStatement stmt = site == null ? listAllInstrumentsStmt : listAllInstrumentsAtSiteStmt;
+            bindSite(stmt, 1, site);
+            try (ResultSet result = executeQuery(stmt)) {
+                return readInstruments(result);
             }
-            commit(); // replace with method commit();
-        } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
-        } finally {
-            closeResultSet(failureMsg, result);
-        }
-        return instruments;
+        });
+    }
+
+    /**
+     * Counts the available instruments of each type, with the cheapest of each,
+     * see <code>SoundGoodStore.countAvailableByType()</code>.
+     * 
+     * @param site     The only site to count, <code>null</code> for all sites.
+     * @param top_n
+     * @param deadline When the operation must be finished.
+     * @return One entry per type, the type with the most available first.
+     * @throws SoundGoodException
+     */
+    public List<TypeAvailability> countAvailableByType(String site, int top_n, Deadline deadline)
+            throws SoundGoodException {
+        String failureMsg = "Could not count the available instruments.";
+        return transaction(failureMsg, deadline, () -> {
+            PreparedStatement stmt = site == null ? countAvailableByTypeStmt : countAvailableByTypeAtSiteStmt;
+            stmt.setInt(bindSite(stmt, 1, site), top_n);
+            List<TypeAvailability> overview = new ArrayList<>();
+            try (ResultSet result = executeQuery(stmt)) {
+                String type = null;
+                int available = 0;
+                List<Instrument> cheapest = new ArrayList<>();
+                while (result.next()) {
+                    Instrument instrument = readInstrument(result);
+                    if (!instrument.getInstrument_type().equals(type)) {
+                        if (type != null) {
+                            overview.add(new TypeAvailability(type, available, List.copyOf(cheapest)));
+                        }
+                        type = instrument.getInstrument_type();
+                        available = result.getInt("available");
+                        cheapest.clear();
+                    }
+                    cheapest.add(instrument);
+                }
+                if (type != null) {
+                    overview.add(new TypeAvailability(type, available, List.copyOf(cheapest)));
+                }
+            }
+            return overview;
+        });
+    }
+
+    /**
+     * Lists the instruments of a type that are free during a whole period.
+     * 
+     * @param instrument_type
+     * @param site            The only site to list, <code>null</code> for all
+     *                        sites.
+     * @param from_date       The first day of the period.
+     * @param to_date         The day after the last day of the period.
+     * @param deadline        When the operation must be finished.
+     * @return The instruments that are not rented any day of the period.
+     * @throws SoundGoodException
+     */
+    public List<Instrument> findAvailable(String instrument_type, String site, LocalDate from_date,
+            LocalDate to_date, Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not search for available instruments.";
+        return transaction(failureMsg, deadline, () -> {
+            PreparedStatement stmt = site == null ? findAvailableStmt : findAvailableAtSiteStmt;
+            stmt.setString(1, instrument_type);
+            stmt.setObject(2, from_date);
+            stmt.setObject(3, to_date);
+            bindSite(stmt, 4, site);
+            try (ResultSet result = executeQuery(stmt)) {
+                return readInstruments(result);
+            }
+        });
+    }
+
+    /**
+     * Searches the available instruments. The best matches are found by one
+     * query and the facet counts by another, in the same transaction so that
+     * they agree with each other.
+     * 
+     * @param query
+     * @param deadline When the operation must be finished.
+     * @return The best matches and the number of matches per type and brand.
+     * @throws SoundGoodException
+     */
+    public SearchResult searchInstruments(InstrumentQuery query, Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not search for instruments.";
+        String pattern = query.getText().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        boolean atSite = query.getSite() != null;
+        return transaction(failureMsg, deadline, () -> {
+            PreparedStatement searchStmt = atSite ? searchInstrumentsAtSiteStmt : searchInstrumentsStmt;
+            PreparedStatement facetsStmt = atSite ? countSearchFacetsAtSiteStmt : countSearchFacetsStmt;
+            searchStmt.setString(1, query.getText());
+            int limitIndex = bindSearchMatches(searchStmt, 2, pattern, query);
+            searchStmt.setInt(limitIndex, query.getLimit());
+            List<Instrument> instruments;
+            try (ResultSet result = executeQuery(searchStmt)) {
+                instruments = readInstruments(result);
+            }
+            bindSearchMatches(facetsStmt, 1, pattern, query);
+            Map<String, Integer> typeCounts = new LinkedHashMap<>();
+            Map<String, Integer> brandCounts = new LinkedHashMap<>();
+            int totalMatches = 0;
+            try (ResultSet result = executeQuery(facetsStmt)) {
+                while (result.next()) {
+                    int matches = result.getInt("matches");
+                    if (result.getInt("by_brand") == 1) {
+                        brandCounts.put(result.getString("instrument_brand"), matches);
+                    } else {
+                        typeCounts.put(result.getString("type_of_instrument"), matches);
+                        totalMatches += matches;
+                    }
+                }
+            }
+            return new SearchResult(instruments, totalMatches, typeCounts, brandCounts);
+        });
+    }
+
+    /**
+     * @return The index of the parameter after <code>SEARCH_MATCHES</code>.
+     */
+    private int bindSearchMatches(PreparedStatement stmt, int firstIndex, String pattern, InstrumentQuery query)
+            throws SQLException {
+        stmt.setString(firstIndex, pattern);
+        stmt.setString(firstIndex + 1, query.getText());
+        stmt.setInt(firstIndex + 2, query.getMinPrice());
+        stmt.setInt(firstIndex + 3, query.getMaxPrice());
+        return bindSite(stmt, firstIndex + 4, query.getSite());
     }
 
     /**
@@ -208,23 +849,15 @@ public class SoundGoodDAO {
      * Returns 0 if the student's id isn't present in the table "rentingInstrument"
      * OR if the to_date is less than current_date. I.E the rental's return date has
      * passed. Returns 1 OR 2 if student's ID is present and rental date is greater
-     * than current_date. Returns -1 if SQLException has been caught.
+     * than current_date.
      * 
      * @param student_id
+     * @param deadline   When the operation must be finished.
      * @return quantity of instruments rented by @param student_id
      */
-    public int checkStudentRental(int student_id) throws SoundGoodException {
+    public int checkStudentRental(int student_id, Deadline deadline) throws SoundGoodException {
         String failureMsg = "Could not retrive rental status for student";
-        try {
-            checkStudentRentalsStmt.setInt(1, student_id);
-            ResultSet rentStudent = checkStudentRentalsStmt.executeQuery();
-            rentStudent.next();
-            commit();
-            return rentStudent.getInt(1);
-        } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
-            return -1;
-        }
+        return transaction(failureMsg, deadline, () -> countStudentRentals(student_id));
     }
 
     /**
@@ -232,47 +865,49 @@ public class SoundGoodDAO {
      * currently being rented out.
      * 
      * @param instrument_id
-     * @return 1 if True, 0 if False and -1 if SQLException was caught.
+     * @param deadline      When the operation must be finished.
+     * @return 1 if True, 0 if False.
      * @throws SoundGoodException
      */
-    public int checkInstrumentRental(int instrument_id) throws SoundGoodException {
+    public int checkInstrumentRental(int instrument_id, Deadline deadline) throws SoundGoodException {
         String failureMsg = "Could not retrive rental status for instrument";
-        try {
-            checkInstrumentRentalStmt.setInt(1, instrument_id);
-            ResultSet rentInstrument = checkInstrumentRentalStmt.executeQuery();
-            rentInstrument.next();
-            commit();
-            return rentInstrument.getInt(1);
-        } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
-            return -1;
-        }
+        return transaction(failureMsg, deadline, () -> countAvailableInstrument(instrument_id));
     }
 
     /**
-     * Rents the requested instrument.
+     * Rents the requested instrument, if the student has rented less than two
+     * instruments and the instrument is not already rented out. The checks and
+     * the insert are performed in the same serializable transaction, which is
+     * retried if it collides with a concurrent rental.
      * 
      * @param student_id
      * @param instrument_id
-     * @throws SoundGoodException
+     * @param deadline      When the operation must be finished.
+     * @return <code>true</code> if the rental was granted, <code>false</code> if
+     *         the student has reached the rental limit or the instrument is
+     *         already rented.
+     * @throws SoundGoodException If the database could not be reached.
      */
-    public void rentInstrument(int student_id, int instrument_id) throws SoundGoodException {
-        String failureMsg = "Could not find the requested instrument available for rental.";
-        try {
+    public boolean rentInstrument(int student_id, int instrument_id, Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not rent the requested instrument.";
+        ChangedRental rented = transaction(failureMsg, deadline, () -> {
+            if (countStudentRentals(student_id) >= 2 || countAvailableInstrument(instrument_id) != 1) {
+                return null;
+            }
             addRental.setInt(1, student_id);
             addRental.setInt(2, instrument_id);
-            int updateRows = addRental.executeUpdate();
-            if (updateRows != 1) {
-                handleException(failureMsg, null);
-            } else {
-                System.out.println("The requested rental for:\n" + "Instrument with the ID: " + instrument_id
-                        + "\nBy student with the ID: "
-                        + student_id + "\n...has been granted.");
-                commit(); // connection.commit();
+            try (ResultSet result = executeQuery(addRental)) {
+                return result.next() ? readChangedRental(result, student_id) : null;
             }
-        } catch (SQLException e) {
-            handleException(failureMsg, null);
+        });
+        boolean granted = rented != null;
+        if (granted) {
+            invalidateCaches(rented);
+            EventLog.info("rental.granted", "student_id", student_id, "instrument_id", instrument_id);
+        } else {
+            EventLog.info("rental.denied", "student_id", student_id, "instrument_id", instrument_id);
         }
+        return granted;
     }
 
     /**
@@ -280,28 +915,570 @@ public class SoundGoodDAO {
      * If a student "books" a instrument,
      * 
      * @param instrumet_id
+     * @param deadline     When the operation must be finished.
      * @throws SoundGoodException
      */
-    public void terminateRental(int instrumet_id) throws SoundGoodException {
+    public void terminateRental(int instrumet_id, Deadline deadline) throws SoundGoodException {
         String failureMsg = "Could not terminate rental.";
-        try {
+        List<ChangedRental> terminated = transaction(failureMsg, deadline, () -> {
             terminateRental.setInt(1, instrumet_id);
-            int updatedRows = terminateRental.executeUpdate();
-            if (updatedRows != 1) {
-                handleException(failureMsg, null);
-            } else {
-                System.out.println("Termination of rental for instrument ID: " + instrumet_id);
-                commit(); // replace with method commit();
+            List<ChangedRental> ended = new ArrayList<>();
+            try (ResultSet result = executeQuery(terminateRental)) {
+                while (result.next()) {
+                    ended.add(readChangedRental(result, result.getInt("student_id")));
+                }
             }
+            return ended;
+        });
+        terminated.forEach(this::invalidateCaches);
+        if (terminated.isEmpty()) {
+            throw new RentalNotFoundException(failureMsg + " The instrument is not rented out.");
+        }
+        EventLog.info("rental.terminated", "instrument_id", instrumet_id, "student_id",
+                terminated.get(0).student_id());
+    }
+
+    /**
+     * Lists all rentals of a student, both active and past ones, with details
+     * about the rented instruments. The result is cached for a few seconds, or
+     * until the student rents or returns an instrument, see
+     * <code>StudentRentalCache</code>.
+     * 
+     * @param student_id
+     * @param deadline   When the operation must be finished.
+     * @return The student's rentals, the latest ending first.
+     * @throws SoundGoodException
+     */
+    public List<Rental> findRentalsByStudent(int student_id, Deadline deadline) throws SoundGoodException {
+        List<Rental> cached = studentRentalCache.get(student_id);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = studentRentalCache.generation();
+        String failureMsg = "Could not list the rentals of the student.";
+        List<Rental> found = transaction(failureMsg, deadline, () -> {
+            findRentalsByStudentStmt.setInt(1, student_id);
+            try (ResultSet result = executeQuery(findRentalsByStudentStmt)) {
+                return readRentals(result);
+            }
+        });
+        studentRentalCache.put(student_id, found, generation);
+        return found;
+    }
+
+    /**
+     * Reads one page of rentals to bill, see
+     * <code>SoundGoodStore.findRentalsForBilling()</code>.
+     * 
+     * @param billing_month
+     * @param after_student_id
+     * @param max_students
+     * @param deadline         When the operation must be finished.
+     * @return The rentals, ordered by student id.
+     * @throws SoundGoodException
+     */
+    public List<Rental> findRentalsForBilling(YearMonth billing_month, int after_student_id, int max_students,
+            Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not read rentals to bill.";
+        LocalDate monthStart = billing_month.atDay(1);
+        LocalDate monthEnd = billing_month.plusMonths(1).atDay(1);
+        return transaction(failureMsg, deadline, () -> {
+            findRentalsForBillingStmt.setInt(1, after_student_id);
+            findRentalsForBillingStmt.setObject(2, monthEnd);
+            findRentalsForBillingStmt.setObject(3, monthStart);
+            findRentalsForBillingStmt.setInt(4, max_students);
+            findRentalsForBillingStmt.setObject(5, monthEnd);
+            findRentalsForBillingStmt.setObject(6, monthStart);
+            try (ResultSet result = executeQuery(findRentalsForBillingStmt)) {
+                return readRentals(result);
+            }
+        });
+    }
+
+    /**
+     * Stores the invoices and their lines with two batched upserts, in one
+     * transaction. The lines of earlier invoices for instruments that are no
+     * longer billed are deleted first, so a repeated run leaves no stale lines.
+     * There is one line per instrument, see <code>BillingCalculator</code>, so
+     * no upsert touches the same row twice.
+     * 
+     * @param invoices
+     * @param deadline When the operation must be finished.
+     * @throws SoundGoodException
+     */
+    public void storeInvoices(List<Invoice> invoices, Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not store invoices.";
+        transaction(failureMsg, deadline, () -> {
+            storeInvoiceStmt.clearBatch();
+            storeInvoiceLineStmt.clearBatch();
+            deleteInvoiceLinesStmt.clearBatch();
+            for (Invoice invoice : invoices) {
+                LocalDate billingMonth = invoice.getBilling_month().atDay(1);
+                Object[] billedInstruments = invoice.getLines().stream()
+                        .map(InvoiceLine::getInstrument_id).toArray();
+                deleteInvoiceLinesStmt.setInt(1, invoice.getStudent_id());
+                deleteInvoiceLinesStmt.setObject(2, billingMonth);
+                deleteInvoiceLinesStmt.setArray(3, connection.createArrayOf("integer", billedInstruments));
+                deleteInvoiceLinesStmt.addBatch();
+                storeInvoiceStmt.setInt(1, invoice.getStudent_id());
+                storeInvoiceStmt.setObject(2, billingMonth);
+                storeInvoiceStmt.setInt(3, invoice.getTotal());
+                storeInvoiceStmt.addBatch();
+                for (InvoiceLine line : invoice.getLines()) {
+                    storeInvoiceLineStmt.setInt(1, invoice.getStudent_id());
+                    storeInvoiceLineStmt.setObject(2, billingMonth);
+                    storeInvoiceLineStmt.setInt(3, line.getInstrument_id());
+                    storeInvoiceLineStmt.setString(4, line.getSite());
+                    storeInvoiceLineStmt.setInt(5, line.getDays());
+                    storeInvoiceLineStmt.setInt(6, line.getAmount());
+                    storeInvoiceLineStmt.addBatch();
+                }
+            }
+            timed(deleteInvoiceLinesStmt).executeBatch();
+            timed(storeInvoiceStmt).executeBatch();
+            timed(storeInvoiceLineStmt).executeBatch();
+            return null;
+        });
+    }
+
+    /**
+     * Marks one batch of expiring and expired rentals, see
+     * <code>SoundGoodStore.sweepExpiringRentals()</code>. The rentals are marked
+     * and their reminders created by one statement. The caches are not
+     * invalidated, since closing an expired rental does not change which
+     * instruments are available.
+     * 
+     * @param reminder_days
+     * @param max_rentals
+     * @param deadline      When the operation must be finished.
+     * @return The number of rentals marked, and of reminders created.
+     * @throws SoundGoodException
+     */
+    public ExpirySweep sweepExpiringRentals(int reminder_days, int max_rentals, Deadline deadline)
+            throws SoundGoodException {
+        String failureMsg = "Could not sweep the expiring rentals.";
+        return transaction(failureMsg, deadline, () -> {
+            sweepExpiringRentalsStmt.setInt(1, reminder_days);
+            sweepExpiringRentalsStmt.setInt(2, max_rentals);
+            try (ResultSet result = executeQuery(sweepExpiringRentalsStmt)) {
+                result.next();
+                return new ExpirySweep(result.getInt("swept"), result.getInt("expiring"),
+                        result.getInt("expired"));
+            }
+        });
+    }
+
+    /**
+     * Reads the oldest events in the outbox, see
+     * <code>SoundGoodStore.readRentalEvents()</code>. Event ids are taken when an
+     * event is written, not when it is committed, so an event may be read after
+     * events with higher ids. The events of one instrument are always read in
+     * order, since a rental of an instrument is not changed until the change
+     * before it has been committed.
+     * 
+     * @param max_events
+     * @param deadline   When the operation must be finished.
+     * @return The events, in event id order.
+     * @throws SoundGoodException
+     */
+    public List<RentalEvent> readRentalEvents(int max_events, Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not read the rental events.";
+        return transaction(failureMsg, deadline, () -> {
+            readRentalEventsStmt.setInt(1, max_events);
+            List<RentalEvent> events = new ArrayList<>();
+            try (ResultSet result = executeQuery(readRentalEventsStmt)) {
+                while (result.next()) {
+                    events.add(new RentalEvent(
+                            result.getLong("event_id"),
+                            result.getString("event_type"),
+                            result.getInt("student_id"),
+                            result.getInt("instrument_id"),
+                            attributes.canonical(result.getString("site")),
+                            result.getObject("from_date", LocalDate.class),
+                            result.getObject("to_date", LocalDate.class),
+                            result.getObject("created_at", OffsetDateTime.class).toInstant()));
+                }
+            }
+            return events;
+        });
+    }
+
+    /**
+     * Deletes delivered events from the outbox.
+     * 
+     * @param events
+     * @param deadline When the operation must be finished.
+     * @throws SoundGoodException
+     */
+    public void acknowledgeRentalEvents(List<RentalEvent> events, Deadline deadline) throws SoundGoodException {
+        if (events.isEmpty()) {
+            return;
+        }
+        String failureMsg = "Could not remove the delivered rental events.";
+        Long[] eventIds = events.stream().map(RentalEvent::getEvent_id).toArray(Long[]::new);
+        transaction(failureMsg, deadline, () -> {
+            deleteRentalEventsStmt.setArray(1, connection.createArrayOf("bigint", eventIds));
+            timed(deleteRentalEventsStmt).executeUpdate();
+            return null;
+        });
+    }
+
+    /**
+     * Reads all instruments and active rentals in one serializable transaction,
+     * so that the rentals are those of the instruments as they were at the
+     * returned time.
+     * 
+     * @param deadline When the operation must be finished.
+     * @return The catalog, with the time it was read.
+     * @throws SoundGoodException
+     */
+    public CatalogState readCatalogState(Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not read the catalog.";
+        return transaction(failureMsg, deadline, () -> {
+            Instant taken_at;
+            long catalog_version;
+            try (ResultSet result = executeQuery(catalogVersionStmt)) {
+                result.next();
+                taken_at = result.getObject("taken_at", OffsetDateTime.class).toInstant();
+                catalog_version = result.getLong("version");
+            }
+            List<Instrument> instruments;
+            try (ResultSet result = executeQuery(listCatalogStmt)) {
+                instruments = readInstruments(result);
+            }
+            try (ResultSet result = executeQuery(findActiveRentalsStmt)) {
+                return new CatalogState(taken_at, catalog_version, instruments, readRentals(result));
+            }
+        });
+    }
+
+    /**
+     * Lists the rentals made or terminated after the specified time. A rental
+     * is stamped with the start of the transaction that changed it, so a
+     * transaction that started before <code>since</code> but committed after it
+     * is missed. Callers pass a time somewhat earlier than the one they are
+     * catching up from.
+     * 
+     * @param since
+     * @param deadline When the operation must be finished.
+     * @return The changed rentals, the earliest changed first.
+     * @throws SoundGoodException
+     */
+    public List<Rental> findRentalChangesSince(Instant since, Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not list the changed rentals.";
+        return transaction(failureMsg, deadline, () -> {
+            findRentalChangesStmt.setObject(1, since.atOffset(ZoneOffset.UTC));
+            try (ResultSet result = executeQuery(findRentalChangesStmt)) {
+                return readRentals(result);
+            }
+        });
+    }
+
+    /**
+     * Reads the version of the catalog, which changes whenever an instrument is
+     * added, changed or removed, see V9__catalog_version.sql. A snapshot with
+     * another version does not have the current instruments.
+     * 
+     * @param deadline When the operation must be finished.
+     * @return The version of the catalog.
+     * @throws SoundGoodException
+     */
+    public long readCatalogVersion(Deadline deadline) throws SoundGoodException {
+        String failureMsg = "Could not read the version of the catalog.";
+        return transaction(failureMsg, deadline, () -> {
+            try (ResultSet result = executeQuery(catalogVersionStmt)) {
+                result.next();
+                return result.getLong("version");
+            }
+        });
+    }
+
+    /**
+     * @return The number of invalidations of the cached listings so far. Read it
+     *         before reading the rentals that warm listings are computed from,
+     *         and pass it to <code>warmUp()</code>.
+     */
+    public long getListingGeneration() {
+        return instrumentListCache.generation();
+    }
+
+    /**
+     * Caches a listing computed from a catalog snapshot, see
+     * <code>WarmStart</code>, so that the first listings after a restart do not
+     * all scan the instrument table. Unlike a listing read from the database, it
+     * is kept until an instrument of the type at the site is rented or returned,
+     * or for at most a few minutes, see <code>InstrumentListCache</code>.
+     * 
+     * @param site            The listed site, <code>null</code> for all sites.
+     * @param instrument_type The listed type.
+     * @param available       The available instruments of the type at the site.
+     * @param generation      The generation read before the rentals the listing
+     *                        is computed from, the listing is not cached if a
+     *                        listing has been invalidated since.
+     */
+    public void warmUp(String site, String instrument_type, List<Instrument> available, long generation) {
+        instrumentListCache.putWarm(site, instrument_type, available, generation);
+    }
+
+    /**
+     * Runs <code>SELECT 1</code> as a transaction of its own, so the time it takes
+     * includes waiting for admission, and a lost connection is replaced like in
+     * any other transaction.
+     * 
+     * @param deadline When the probe must be finished.
+     * @throws SoundGoodException If the database did not answer in time.
+     */
+    public void probe(Deadline deadline) throws SoundGoodException {
+        transaction("The database did not answer the probe.", deadline, () -> {
+            try (ResultSet result = executeQuery(probeStmt)) {
+                result.next();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return The connection, admission, error and cache state of this DAO.
+     */
+    public StoreHealth getHealth() {
+        Connection current = connection;
+        boolean connected;
+        try {
+            connected = current != null && !current.isClosed();
         } catch (SQLException e) {
-            handleException(failureMsg, null);
+            connected = false;
+        }
+        return new StoreHealth(connected, limiter.getRunning(), limiter.getMaxConcurrent(), limiter.getWaiting(),
+                retryPolicy.getTransactions(), retryPolicy.getFailed(), limiter.getRejected(),
+                instrumentListCache.oldestAge());
+    }
+
+    /**
+     * @return The retry counters of this DAO.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return The admission counters of this DAO.
+     */
+    public OperationLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return The retry, admission, cache, dictionary and profiler counters of
+     *         this DAO.
+     */
+    public String getStatistics() {
+        return retryPolicy + "\n" + limiter + "\n" + studentRentalCache + "\n" + instrumentListCache + "\n"
+                + attributes + "\n" + profiler;
+    }
+
+    /**
+     * Profiles statements slower than the specified threshold, see
+     * <code>QueryProfiler</code>.
+     * 
+     * @param threshold The threshold, <code>null</code> turns profiling off.
+     */
+    public void profileSlowQueries(Duration threshold) {
+        profiler.setThreshold(threshold);
+    }
+
+    /**
+     * @return The slowest statements profiled, the slowest first.
+     */
+    public List<SlowQuery> getSlowQueries() {
+        return profiler.getSlowest();
+    }
+
+    /**
+     * Cancels the statement that is currently executing, if there is one. The
+     * operation that is running the statement fails with a
+     * <code>SoundGoodException</code>. May be called from any thread.
+     */
+    public void cancelInFlight() {
+        PreparedStatement stmt = inFlightStmt;
+        if (stmt == null) {
+            return;
+        }
+        try {
+            stmt.cancel();
+        } catch (SQLException ignored) {
+            // The statement has already completed.
+        }
+    }
+
+    /**
+     * Sets the query timeout of the specified statement to the time left of the
+     * current operation, and registers it as the statement to cancel if
+     * <code>cancelInFlight()</code> is called.
+     */
+    private PreparedStatement timed(PreparedStatement stmt) throws SQLException {
+        stmt.setQueryTimeout(currentDeadline.queryTimeoutSeconds());
+        inFlightStmt = stmt;
+        return stmt;
+    }
+
+    /**
+     * Executes the specified query with <code>timed()</code>, and keeps it for
+     * the profiler if it is slow. Used for all statements except the batches.
+     */
+    private ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+        long startNanos = System.nanoTime();
+        ResultSet result = timed(stmt).executeQuery();
+        profile(stmt, startNanos);
+        return result;
+    }
+
+    private void profile(PreparedStatement stmt, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (profiler.isSlow(elapsedNanos)) {
+            slowStatements.add(new SlowStatement(stmt.toString(), elapsedNanos));
+        }
+    }
+
+    private int countStudentRentals(int student_id) throws SQLException {
+        checkStudentRentalsStmt.setInt(1, student_id);
+        try (ResultSet result = executeQuery(checkStudentRentalsStmt)) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    private int countAvailableInstrument(int instrument_id) throws SQLException {
+        checkInstrumentRentalStmt.setInt(1, instrument_id);
+        try (ResultSet result = executeQuery(checkInstrumentRentalStmt)) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    private List<Rental> readRentals(ResultSet result) throws SQLException {
+        List<Rental> rentals = new ArrayList<>();
+        while (result.next()) {
+            rentals.add(new Rental(result.getInt("student_id"),
+                    readInstrument(result),
+                    result.getObject("from_date", LocalDate.class),
+                    result.getObject("to_date", LocalDate.class)));
+        }
+        return rentals;
+    }
+
+    private ChangedRental readChangedRental(ResultSet result, int student_id) throws SQLException {
+        return new ChangedRental(student_id, result.getString("site"), result.getString("type_of_instrument"));
+    }
+
+    private void invalidateCaches(ChangedRental changed) {
+        studentRentalCache.invalidate(changed.student_id());
+        instrumentListCache.invalidate(changed.site(), changed.instrument_type());
+    }
+
+    private List<Instrument> readInstruments(ResultSet result) throws SQLException {
+        List<Instrument> instruments = new ArrayList<>();
+        while (result.next()) {
+            instruments.add(readInstrument(result));
+        }
+        return instruments;
+    }
+
+    /**
+     * Reads the instrument of the current row. The type, brand and site are
+     * replaced by the equal strings in <code>attributes</code>.
+     */
+    private Instrument readInstrument(ResultSet result) throws SQLException {
+        return new Instrument(
+                result.getInt("instrument_id"),
+                attributes.canonical(result.getString("type_of_instrument")),
+                attributes.canonical(result.getString("instrument_brand")),
+                result.getInt("instrument_price"),
+                attributes.canonical(result.getString("site")));
+    }
+
+    /**
+     * Runs the specified work in a transaction and commits it. If the work or the
+     * commit fails the transaction is rolled back, and if the failure is
+     * transient according to the <code>RetryPolicy</code> the work is run again
+     * after a jittered backoff. Permanent failures, and transient failures that
+     * remain after the retry deadline, are handled by
+     * <code>handleException()</code>.
+     * 
+     * The work is not started until the <code>OperationLimiter</code> admits it,
+     * and no statement is allowed to run past the specified deadline.
+     * 
+     * @param failureMsg The message of the exception thrown if the work fails.
+     * @param deadline   When the operation must be finished.
+     * @param work       The work to perform.
+     * @return The value returned by the work.
+     * @throws SoundGoodException If the work could not be completed.
+     */
+    private <T> T transaction(String failureMsg, Deadline deadline, SqlWork<T> work) throws SoundGoodException {
+        limiter.acquire(deadline);
+        try {
+            currentDeadline = deadline;
+            return runWithRetries(failureMsg, deadline, work);
+        } finally {
+            inFlightStmt = null;
+            currentDeadline = null;
+            limiter.release();
+        }
+    }
 
+    private <T> T runWithRetries(String failureMsg, Deadline deadline, SqlWork<T> work) throws SoundGoodException {
+        retryPolicy.transactionStarted();
+        long deadlineNanos = Math.min(deadline.getNanos(),
+                System.nanoTime() + retryPolicy.getDeadlineMillis() * 1_000_000);
+        for (int attempt = 1;; attempt++) {
+            if (deadline.isExpired()) {
+                handleException(failureMsg + " The operation timed out.",
+                        new SQLTimeoutException("The deadline passed before attempt " + attempt + " could start."));
+            }
+            try {
+                slowStatements.clear();
+                T result = work.run();
+                connection.commit();
+                for (SlowStatement slow : slowStatements) {
+                    profiler.record(slow.boundStatement(), slow.elapsedNanos());
+                }
+                return result;
+            } catch (SQLException sqle) {
+                if (deadline.isExpired()) {
+                    handleException(failureMsg + " The operation timed out.", sqle);
+                }
+                RetryPolicy.Failure failure = RetryPolicy.classify(sqle);
+                if (!retryPolicy.shouldRetry(failure, attempt, deadlineNanos)) {
+                    handleException(failureMsg, sqle);
+                }
+                rollbackQuietly();
+                EventLog.warn("tx.retry", "failure", failure, "attempt", attempt, "sqlstate", sqle.getSQLState());
+                try {
+                    retryPolicy.backoff(attempt);
+                    if (failure == RetryPolicy.Failure.CONNECTION) {
+                        reconnect();
+                        EventLog.warn("db.reconnected");
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    handleException(failureMsg + " Interrupted while waiting to retry.", sqle);
+                } catch (SQLException reconnectExc) {
+                    sqle.setNextException(reconnectExc);
+                    handleException(failureMsg + " Could not reconnect.", sqle);
+                }
+            }
+        }
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+            // The transaction is retried or reported anyway.
         }
     }
 
     /**
-     * Used in commit(), terminateRental(), rentInstrument(), checkStudentRental(),
-     * checkInstrumentRental() and printListInstrument().
+     * Used in commit() and runWithRetries().
      * 
      * @param failureMsg
      * @param cause
@@ -315,25 +1492,12 @@ public class SoundGoodDAO {
             completeFailureMsg = completeFailureMsg +
                     ". Also failed to rollback transaction because of: " + rollbackExc.getMessage();
         }
+        retryPolicy.transactionFailed();
+        EventLog.error("tx.failed", cause, "message", completeFailureMsg);
         if (cause != null) {
-            throw new SoundGoodException(failureMsg, cause);
+            throw new SoundGoodException(completeFailureMsg, cause);
         } else {
-            throw new SoundGoodException(failureMsg);
-        }
-    }
-
-    /**
-     * Used in printListInstrument()
-     * 
-     * @param failureMsg
-     * @param result
-     * @throws SoundGoodException
-     */
-    private void closeResultSet(String failureMsg, ResultSet result) throws SoundGoodException {
-        try {
-            result.close();
-        } catch (Exception e) {
-            throw new SoundGoodException(failureMsg + " Could not close result set.", e);
+            throw new SoundGoodException(completeFailureMsg);
         }
     }
 
@@ -0,0 +1,276 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.ExpirySweep;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.Invoice;
+import se.kth.iv1351.bankjdbc.model.InstrumentQuery;
+import se.kth.iv1351.bankjdbc.model.Rental;
+import se.kth.iv1351.bankjdbc.model.RentalEvent;
+import se.kth.iv1351.bankjdbc.model.SearchResult;
+import se.kth.iv1351.bankjdbc.model.SlowQuery;
+import se.kth.iv1351.bankjdbc.model.StoreHealth;
+import se.kth.iv1351.bankjdbc.model.TypeAvailability;
+
+/**
+ * All operations the controller can perform on the stored instruments and
+ * rentals. <code>SoundGoodDAO</code> stores them in the SoundGood database,
+ * <code>InMemorySoundGoodStore</code> keeps them in memory for tests, demos
+ * and benchmarks. Both implementations follow the same rental rules; a student
+ * may rent at most two instruments at a time, and an instrument may only be
+ * rented by one student at a time.
+ */
+public interface SoundGoodStore extends AutoCloseable {
+
+    /**
+     * @param deadline When the operation must be finished.
+     * @return The names of all sites, in alphabetical order.
+     * @throws SoundGoodException If the sites could not be listed.
+     */
+    public List<String> listSites(Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Counts the available instruments of each type, and finds the cheapest of
+     * them, in one pass over the catalog.
+     *
+     * @param site     The only site to count, <code>null</code> counts all sites.
+     * @param top_n    The largest number of instruments listed per type.
+     * @param deadline When the operation must be finished.
+     * @return One entry per type with available instruments, the type with the
+     *         most available instruments first.
+     * @throws SoundGoodException If the instruments could not be counted.
+     */
+    public List<TypeAvailability> countAvailableByType(String site, int top_n, Deadline deadline)
+            throws SoundGoodException;
+
+    /**
+     * @param instrument_type The type of instrument to list, case is ignored.
+     * @param site            The only site to list, <code>null</code> lists all
+     *                        sites.
+     * @param deadline        When the operation must be finished.
+     * @return All instruments of the specified type that are not rented out.
+     * @throws SoundGoodException If the instruments could not be listed.
+     */
+    public List<Instrument> printListInstrument(String instrument_type, String site, Deadline deadline)
+            throws SoundGoodException;
+
+    /**
+     * @param site     The only site to list, <code>null</code> lists all sites.
+     * @param deadline When the operation must be finished.
+     * @return All instruments that are not rented out.
+     * @throws SoundGoodException If the instruments could not be listed.
+     */
+    public List<Instrument> printListAllInstruments(String site, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Lists the instruments of a type that are not rented any day of a period,
+     * for booking in advance.
+     *
+     * @param instrument_type The type of instrument to list, case is ignored.
+     * @param site            The only site to list, <code>null</code> lists all
+     *                        sites.
+     * @param from_date       The first day of the period.
+     * @param to_date         The day after the last day of the period.
+     * @param deadline        When the operation must be finished.
+     * @return The instruments that are free during the whole period.
+     * @throws SoundGoodException If the instruments could not be listed.
+     */
+    public List<Instrument> findAvailable(String instrument_type, String site, LocalDate from_date,
+            LocalDate to_date, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Searches the available instruments by type and brand, see
+     * <code>InstrumentQuery</code>.
+     *
+     * @param query    The search.
+     * @param deadline When the operation must be finished.
+     * @return The best matching instruments and the number of matches per type
+     *         and brand.
+     * @throws SoundGoodException If the search failed.
+     */
+    public SearchResult searchInstruments(InstrumentQuery query, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * @param student_id The student to check.
+     * @param deadline   When the operation must be finished.
+     * @return The number of active rentals of the student.
+     * @throws SoundGoodException If the rentals could not be counted.
+     */
+    public int checkStudentRental(int student_id, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * @param instrument_id The instrument to check.
+     * @param deadline      When the operation must be finished.
+     * @return 1 if the instrument exists and is not rented out, otherwise 0.
+     * @throws SoundGoodException If the instrument could not be checked.
+     */
+    public int checkInstrumentRental(int instrument_id, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Rents the instrument to the student, if the student has rented less than
+     * two instruments and the instrument is not rented out.
+     *
+     * @param student_id    The renting student.
+     * @param instrument_id The instrument to rent.
+     * @param deadline      When the operation must be finished.
+     * @return <code>true</code> if the rental was granted, <code>false</code> if
+     *         it was denied by the rental rules.
+     * @throws SoundGoodException If the rental could not be performed.
+     */
+    public boolean rentInstrument(int student_id, int instrument_id, Deadline deadline)
+            throws SoundGoodException;
+
+    /**
+     * Ends the active rental of the instrument.
+     *
+     * @param instrument_id The rented instrument.
+     * @param deadline      When the operation must be finished.
+     * @throws RentalNotFoundException If the instrument is not rented out.
+     * @throws SoundGoodException      If the rental could not be terminated.
+     */
+    public void terminateRental(int instrument_id, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * @param student_id The student whose rentals are listed.
+     * @param deadline   When the operation must be finished.
+     * @return All rentals of the student, the latest ending first.
+     * @throws SoundGoodException If the rentals could not be listed.
+     */
+    public List<Rental> findRentalsByStudent(int student_id, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Reads one page of the rentals to bill for a month. The pages are
+     * partitioned by student, a page holds all rentals overlapping the month of
+     * the <code>max_students</code> students with the lowest ids greater than
+     * <code>after_student_id</code>. The next page is read by passing the highest
+     * student id of this page.
+     *
+     * @param billing_month    The billed month.
+     * @param after_student_id Only students with a greater id are included.
+     * @param max_students     The maximum number of students in the page.
+     * @param deadline         When the operation must be finished.
+     * @return The rentals, ordered by student id. Empty when there are no more
+     *         students to bill.
+     * @throws SoundGoodException If the rentals could not be read.
+     */
+    public List<Rental> findRentalsForBilling(YearMonth billing_month, int after_student_id, int max_students,
+            Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Stores the specified invoices, replacing any earlier invoices of the same
+     * students and month, lines included, so that a billing run can be
+     * repeated.
+     *
+     * @param invoices The invoices to store.
+     * @param deadline When the operation must be finished.
+     * @throws SoundGoodException If the invoices could not be stored.
+     */
+    public void storeInvoices(List<Invoice> invoices, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Marks one batch of the open rentals that expire within
+     * <code>reminder_days</code>, or have expired. A rental that expires soon
+     * gets a reminder, once. A rental that has expired is closed, and gets a
+     * reminder that it has expired. Rentals that have been marked are not swept
+     * again, so the sweep is repeated until a batch marks fewer than
+     * <code>max_rentals</code> rentals.
+     *
+     * @param reminder_days How many days before a rental expires its student is
+     *                      reminded.
+     * @param max_rentals   The largest number of rentals marked.
+     * @param deadline      When the operation must be finished.
+     * @return The number of rentals marked, and of reminders created.
+     * @throws SoundGoodException If the rentals could not be swept.
+     */
+    public ExpirySweep sweepExpiringRentals(int reminder_days, int max_rentals, Deadline deadline)
+            throws SoundGoodException;
+
+    /**
+     * Reads the oldest rental events in the outbox. Each rental that is made,
+     * terminated or closed by the expiry sweep adds an event, atomically with
+     * the change.
+     *
+     * @param max_events The largest number of events read.
+     * @param deadline   When the operation must be finished.
+     * @return The events, in event id order.
+     * @throws SoundGoodException If the events could not be read.
+     */
+    public List<RentalEvent> readRentalEvents(int max_events, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Removes delivered events from the outbox, so that they are not read
+     * again.
+     *
+     * @param events   The delivered events.
+     * @param deadline When the operation must be finished.
+     * @throws SoundGoodException If the events could not be removed.
+     */
+    public void acknowledgeRentalEvents(List<RentalEvent> events, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Reads all instruments and all active rentals, consistent with each other,
+     * to be written to a snapshot, see <code>CatalogSnapshot</code>.
+     *
+     * @param deadline When the operation must be finished.
+     * @return The catalog, with the time it was read.
+     * @throws SoundGoodException If the catalog could not be read.
+     */
+    public CatalogState readCatalogState(Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Lists the rentals that have been made or terminated after the specified
+     * time, used to bring a catalog restored from a snapshot up to date.
+     *
+     * @param since    Only rentals changed after this are listed.
+     * @param deadline When the operation must be finished.
+     * @return The changed rentals, the earliest changed first.
+     * @throws SoundGoodException If the rentals could not be listed.
+     */
+    public List<Rental> findRentalChangesSince(Instant since, Deadline deadline) throws SoundGoodException;
+
+    /**
+     * Starts capturing the statements that run longer than the specified
+     * threshold, with their execution plans.
+     *
+     * @param threshold The threshold, <code>null</code> stops the capturing.
+     */
+    public void profileSlowQueries(Duration threshold);
+
+    /**
+     * @return The slowest statements captured, the slowest first.
+     */
+    public List<SlowQuery> getSlowQueries();
+
+    /**
+     * @return A printable summary of the counters of this store.
+     */
+    public String getStatistics();
+
+    /**
+     * Makes the cheapest possible round trip to the store, waiting for the same
+     * admission as any other operation, to check that it can serve.
+     * 
+     * @param deadline When the probe must be finished.
+     * @throws SoundGoodException If the store did not answer in time.
+     */
+    public void probe(Deadline deadline) throws SoundGoodException;
+
+    /**
+     * @return The connection, admission, error and cache state of this store now.
+     *         Does not access the database.
+     */
+    public StoreHealth getHealth();
+
+    /**
+     * Lets running operations finish, rejects new ones, and releases all
+     * resources held by the store. Calling it more than once has no effect.
+     */
+    @Override
+    public void close();
+}
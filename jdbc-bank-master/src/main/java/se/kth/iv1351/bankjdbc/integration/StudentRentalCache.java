@@ -0,0 +1,106 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.bankjdbc.model.Rental;
+
+/**
+ * Caches the rentals of each student that has recently been looked up. At most
+ * <code>MAX_STUDENTS</code> students are kept, the least recently used is
+ * evicted first. An entry expires <code>TTL_NANOS</code> after it was read, so
+ * that rentals changed by other processes are noticed, and which rentals are
+ * active depends on the date, so an entry is only used on the day it was read.
+ * 
+ * Entries are invalidated by the DAO when a rental of the student is created or
+ * terminated, after the change is committed. A listing read before that is not
+ * cached if it is put after the invalidation, see <code>generation()</code>.
+ */
+class StudentRentalCache {
+    private static final int MAX_STUDENTS = 10_000;
+    private static final long TTL_NANOS = 10_000_000_000L;
+
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() > MAX_STUDENTS) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long generation;
+
+    private static final class Entry {
+        private final LocalDate readOn;
+        private final long readAtNanos;
+        private final List<Rental> rentals;
+
+        private Entry(LocalDate readOn, long readAtNanos, List<Rental> rentals) {
+            this.readOn = readOn;
+            this.readAtNanos = readAtNanos;
+            this.rentals = rentals;
+        }
+    }
+
+    /**
+     * @param student_id The student whose rentals are wanted.
+     * @return The cached rentals, or <code>null</code> if they are not cached or
+     *         have expired.
+     */
+    synchronized List<Rental> get(int student_id) {
+        Entry entry = entries.get(student_id);
+        if (entry != null && (System.nanoTime() - entry.readAtNanos > TTL_NANOS
+                || !entry.readOn.equals(LocalDate.now()))) {
+            entries.remove(student_id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.rentals;
+    }
+
+    /**
+     * @return The number of invalidations so far. Read it before reading rentals
+     *         from the database, and pass it to <code>put()</code>.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores the rentals of a student, as just read from the database, unless a
+     * rental has been invalidated since <code>generation</code>, since the read
+     * rentals may then be stale.
+     */
+    synchronized void put(int student_id, List<Rental> rentals, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        entries.put(student_id, new Entry(LocalDate.now(), System.nanoTime(), List.copyOf(rentals)));
+    }
+
+    /**
+     * Removes the rentals of the specified student from the cache.
+     */
+    synchronized void invalidate(int student_id) {
+        generation++;
+        entries.remove(student_id);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Student rental cache: " + entries.size() + " students | Hits: " + hits.get()
+                + " | Misses: " + misses.get() + " | Evictions: " + evictions.get();
+    }
+}
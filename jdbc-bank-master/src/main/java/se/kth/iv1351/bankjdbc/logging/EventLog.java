@@ -0,0 +1,364 @@
+package se.kth.iv1351.bankjdbc.logging;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A structured, asynchronous event log. Logging an event only copies its
+ * fields into a preallocated slot of a ring buffer, which takes nanoseconds and
+ * never blocks; a background thread formats the events as JSON lines, one
+ * object per line, and writes them. If the writer falls behind and the buffer
+ * is full, new events are dropped and counted instead of slowing down the
+ * caller.
+ * 
+ * Every event carries the correlation id of the operation it belongs to, see
+ * <code>begin()</code>, so that all events of one user command can be found in
+ * the log pipeline. Successful reads are frequent and uninteresting, and are
+ * sampled with <code>read()</code>.
+ * 
+ * Configured with system properties:
+ * <ul>
+ * <li><code>soundgood.log</code> a file to append the events to,
+ * <code>stderr</code>, or <code>off</code>. Default
+ * <code>soundgood.log</code>.</li>
+ * <li><code>soundgood.log.readSampling</code> log one of this many successful
+ * reads. Default 100.</li>
+ * </ul>
+ */
+public final class EventLog {
+    /**
+     * The severity of an event.
+     */
+    public enum Level {
+        INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long NODE_ID = ThreadLocalRandom.current().nextInt(0x10000);
+
+    private static final Slot[] SLOTS = new Slot[CAPACITY];
+    private static final AtomicLong HEAD = new AtomicLong();
+    private static volatile long tail;
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final AtomicLong CORRELATION_IDS = new AtomicLong();
+    private static final ThreadLocal<String> CURRENT_CORRELATION_ID = new ThreadLocal<>();
+
+    private static final int READ_SAMPLING = Integer.getInteger("soundgood.log.readSampling", 100);
+    private static final Writer OUT = openSink(System.getProperty("soundgood.log", "soundgood.log"));
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SLOTS[i] = new Slot(i - CAPACITY);
+        }
+        WRITER = new Thread(EventLog::drain, "event-log-writer");
+        WRITER.setDaemon(true);
+        if (OUT != null) {
+            WRITER.start();
+        }
+    }
+
+    private static final class Slot {
+        private volatile long sequence;
+        private long epochMillis;
+        private Level level;
+        private String event;
+        private String correlationId;
+        private Throwable error;
+        private Object[] fields;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The scope of one operation. All events logged by the thread until the
+     * scope is closed get the same correlation id.
+     */
+    public static final class Operation implements AutoCloseable {
+        private final String operation;
+        private final String previous;
+        private final long startNanos = System.nanoTime();
+
+        private Operation(String operation, String previous) {
+            this.operation = operation;
+            this.previous = previous;
+        }
+
+        /**
+         * Logs that the operation failed. Unlike the start of the operation, a
+         * failure is never sampled away. Call it before the scope is closed, so
+         * that it gets the correlation id of the operation.
+         *
+         * @param error Why the operation failed.
+         */
+        public void failed(Throwable error) {
+            warn("op." + operation + ".failed", "message", error.getMessage(),
+                    "millis", (System.nanoTime() - startNanos) / 1_000_000);
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT_CORRELATION_ID.remove();
+            } else {
+                CURRENT_CORRELATION_ID.set(previous);
+            }
+        }
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * Starts an operation with a new correlation id, and logs that it started.
+     * Close the scope when the operation is done, in a finally block or with
+     * try-with-resources.
+     *
+     * @param operation The name of the operation, e.g. RENT.
+     * @param fields    Alternating names and values describing the operation.
+     * @return The scope of the operation.
+     */
+    public static Operation begin(String operation, Object... fields) {
+        String previous = CURRENT_CORRELATION_ID.get();
+        CURRENT_CORRELATION_ID.set(Long.toHexString(NODE_ID << 48 | CORRELATION_IDS.incrementAndGet()));
+        read("op." + operation, fields);
+        return new Operation(operation, previous);
+    }
+
+    /**
+     * @return The correlation id of the current operation, or <code>null</code>
+     *         if no operation is started.
+     */
+    public static String correlationId() {
+        return CURRENT_CORRELATION_ID.get();
+    }
+
+    /**
+     * Logs an event that changed something, or is otherwise always of interest.
+     *
+     * @param event  The name of the event, e.g. rental.granted.
+     * @param fields Alternating names and values.
+     */
+    public static void info(String event, Object... fields) {
+        publish(Level.INFO, event, null, fields);
+    }
+
+    /**
+     * Logs a successful read. Only one of
+     * <code>soundgood.log.readSampling</code> reads is logged.
+     *
+     * @param event  The name of the event.
+     * @param fields Alternating names and values.
+     */
+    public static void read(String event, Object... fields) {
+        if (READ_SAMPLING <= 1 || ThreadLocalRandom.current().nextInt(READ_SAMPLING) == 0) {
+            publish(Level.INFO, event, null, fields);
+        }
+    }
+
+    /**
+     * Logs something unexpected that was handled.
+     *
+     * @param event  The name of the event.
+     * @param fields Alternating names and values.
+     */
+    public static void warn(String event, Object... fields) {
+        publish(Level.WARN, event, null, fields);
+    }
+
+    /**
+     * Logs a failure.
+     *
+     * @param event  The name of the event.
+     * @param error  The cause of the failure, its stack trace is logged.
+     * @param fields Alternating names and values.
+     */
+    public static void error(String event, Throwable error, Object... fields) {
+        publish(Level.ERROR, event, error, fields);
+    }
+
+    /**
+     * Quotes a string the way the event log does, for other writers of JSON
+     * lines.
+     *
+     * @param value The string to quote.
+     * @return The string as a JSON string literal.
+     */
+    public static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        appendString(quoted, value);
+        return quoted.toString();
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full.
+     */
+    public static long dropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Waits until all events logged so far have been written, or the timeout
+     * passes.
+     *
+     * @param timeoutMillis The longest time to wait.
+     */
+    public static void flush(long timeoutMillis) {
+        long target = HEAD.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (OUT != null && tail < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void publish(Level level, String event, Throwable error, Object[] fields) {
+        if (OUT == null) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = HEAD.get();
+            if (sequence - tail >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!HEAD.compareAndSet(sequence, sequence + 1));
+        Slot slot = SLOTS[(int) (sequence & MASK)];
+        slot.epochMillis = System.currentTimeMillis();
+        slot.level = level;
+        slot.event = event;
+        slot.correlationId = CURRENT_CORRELATION_ID.get();
+        slot.error = error;
+        slot.fields = fields;
+        slot.sequence = sequence;
+    }
+
+    private static void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        long reportedDrops = 0;
+        while (true) {
+            Slot slot = SLOTS[(int) (next & MASK)];
+            if (slot.sequence != next) {
+                try {
+                    OUT.flush();
+                } catch (IOException ignored) {
+                    // Nowhere to report it, the next write will try again.
+                }
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            line.setLength(0);
+            format(line, slot);
+            slot.fields = null;
+            slot.error = null;
+            tail = ++next;
+            long drops = DROPPED.get();
+            if (drops != reportedDrops) {
+                line.append("{\"ts\":\"").append(Instant.now()).append("\",\"level\":\"WARN\"")
+                        .append(",\"event\":\"log.dropped\",\"total\":").append(drops).append("}\n");
+                reportedDrops = drops;
+            }
+            try {
+                OUT.write(line.toString());
+            } catch (IOException ignored) {
+                // The event is lost, logging must never fail the application.
+            }
+        }
+    }
+
+    private static void format(StringBuilder line, Slot slot) {
+        line.append("{\"ts\":\"").append(Instant.ofEpochMilli(slot.epochMillis)).append('"');
+        line.append(",\"level\":\"").append(slot.level).append('"');
+        line.append(",\"event\":");
+        appendString(line, slot.event);
+        if (slot.correlationId != null) {
+            line.append(",\"corr\":\"").append(slot.correlationId).append('"');
+        }
+        Object[] fields = slot.fields;
+        for (int i = 0; fields != null && i + 1 < fields.length; i += 2) {
+            line.append(',');
+            appendString(line, String.valueOf(fields[i]));
+            line.append(':');
+            Object value = fields[i + 1];
+            if (value instanceof Number || value instanceof Boolean) {
+                line.append(value);
+            } else {
+                appendString(line, String.valueOf(value));
+            }
+        }
+        if (slot.error != null) {
+            StringWriter stackTrace = new StringWriter();
+            slot.error.printStackTrace(new PrintWriter(stackTrace));
+            line.append(",\"error\":");
+            appendString(line, stackTrace.toString());
+        }
+        line.append("}\n");
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private static Writer openSink(String destination) {
+        if (destination.equals("off")) {
+            return null;
+        }
+        OutputStream out;
+        if (destination.equals("stderr")) {
+            out = System.err;
+        } else {
+            try {
+                out = new FileOutputStream(destination, true);
+            } catch (IOException ioe) {
+                System.err.println("Could not open the event log " + destination + ", logging to stderr. "
+                        + ioe.getMessage());
+                out = System.err;
+            }
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+}
@@ -0,0 +1,70 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes what students owe for their rentals. The price of an instrument is
+ * the price for a whole month, a rental covering only part of the month is
+ * charged for the days it covers. A rental includes its <code>from_date</code>
+ * but not its <code>to_date</code>, the day the instrument is returned.
+ * 
+ * A student who rents the same instrument more than once in a month gets one
+ * line for it, charged for the days of all those rentals together, since the
+ * invoice holds one line per instrument.
+ */
+public class BillingCalculator {
+
+    private BillingCalculator() {
+    }
+
+    /**
+     * Creates the invoice of one student for one month.
+     * 
+     * @param student_id    The billed student.
+     * @param billing_month The billed month.
+     * @param rentals       The rentals of the student, rentals not overlapping
+     *                      the month are ignored.
+     * @return The invoice, or <code>null</code> if there is nothing to charge.
+     */
+    public static Invoice bill(int student_id, YearMonth billing_month, List<? extends RentalDTO> rentals) {
+        LocalDate monthStart = billing_month.atDay(1);
+        LocalDate monthEnd = billing_month.plusMonths(1).atDay(1);
+        int daysInMonth = billing_month.lengthOfMonth();
+        Map<Integer, InstrumentDTO> instruments = new LinkedHashMap<>();
+        Map<Integer, Integer> daysByInstrument = new HashMap<>();
+        for (RentalDTO rental : rentals) {
+            LocalDate from = max(rental.getFrom_date(), monthStart);
+            LocalDate to = min(rental.getTo_date(), monthEnd);
+            int days = (int) ChronoUnit.DAYS.between(from, to);
+            if (days <= 0) {
+                continue;
+            }
+            InstrumentDTO instrument = rental.getInstrument();
+            instruments.putIfAbsent(instrument.getInstrument_id(), instrument);
+            daysByInstrument.merge(instrument.getInstrument_id(), days, Integer::sum);
+        }
+        List<InvoiceLine> lines = new ArrayList<>();
+        for (InstrumentDTO instrument : instruments.values()) {
+            int days = daysByInstrument.get(instrument.getInstrument_id());
+            int price = instrument.getInstrument_price();
+            int amount = (int) ((2L * price * days + daysInMonth) / (2L * daysInMonth));
+            lines.add(new InvoiceLine(instrument.getInstrument_id(), instrument.getSite(), days, amount));
+        }
+        return lines.isEmpty() ? null : new Invoice(student_id, billing_month, lines);
+    }
+
+    private static LocalDate max(LocalDate a, LocalDate b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static LocalDate min(LocalDate a, LocalDate b) {
+        return a.isBefore(b) ? a : b;
+    }
+}
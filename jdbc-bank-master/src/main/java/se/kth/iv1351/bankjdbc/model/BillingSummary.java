@@ -0,0 +1,54 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.Duration;
+import java.time.YearMonth;
+
+/**
+ * The outcome of a billing run.
+ */
+public class BillingSummary {
+    private final YearMonth billing_month;
+    private final int invoices;
+    private final long total;
+    private final Duration elapsed;
+
+    /**
+     * Creates a summary with the specified params;
+     * 
+     * @param billing_month The billed month.
+     * @param invoices      The number of invoices written.
+     * @param total         The sum of all invoices, in SEK.
+     * @param elapsed       The duration of the billing run.
+     */
+    public BillingSummary(YearMonth billing_month, int invoices, long total, Duration elapsed) {
+        this.billing_month = billing_month;
+        this.invoices = invoices;
+        this.total = total;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * GETTER METHODS FOR BILLINGSUMMARY
+     */
+    public YearMonth getBilling_month() {
+        return billing_month;
+    }
+
+    public int getInvoices() {
+        return invoices;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "Billing of " + billing_month + ": " + invoices + " invoices, " + total + " SEK in total, "
+                + elapsed.toMillis() + " ms.";
+    }
+}
@@ -0,0 +1,60 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * All instruments and all active rentals as they were at one point in time.
+ * Written to and read from a snapshot file, see
+ * <code>CatalogSnapshot</code>.
+ */
+public class CatalogState {
+    private final Instant taken_at;
+    private final long catalog_version;
+    private final List<Instrument> instruments;
+    private final List<Rental> active_rentals;
+
+    /**
+     * Creates a catalog state with the specified params;
+     * 
+     * @param taken_at        When the state was read. Rentals changed after this
+     *                        are not included.
+     * @param catalog_version The version of the instruments, which changes
+     *                        whenever an instrument is added, changed or
+     *                        removed.
+     * @param instruments     All instruments, rented or not.
+     * @param active_rentals  The rentals that had not ended when the state was
+     *                        read.
+     */
+    public CatalogState(Instant taken_at, long catalog_version, List<Instrument> instruments,
+            List<Rental> active_rentals) {
+        this.taken_at = taken_at;
+        this.catalog_version = catalog_version;
+        this.instruments = instruments;
+        this.active_rentals = active_rentals;
+    }
+
+    /**
+     * GETTER METHODS FOR CATALOGSTATE
+     */
+    public Instant getTaken_at() {
+        return taken_at;
+    }
+
+    public long getCatalog_version() {
+        return catalog_version;
+    }
+
+    public List<Instrument> getInstruments() {
+        return instruments;
+    }
+
+    public List<Rental> getActive_rentals() {
+        return active_rentals;
+    }
+
+    @Override
+    public String toString() {
+        return instruments.size() + " instruments and " + active_rentals.size() + " active rentals at " + taken_at;
+    }
+}
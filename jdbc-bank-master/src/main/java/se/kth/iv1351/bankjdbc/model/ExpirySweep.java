@@ -0,0 +1,45 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * What a sweep of expiring rentals did, see
+ * <code>SoundGoodStore.sweepExpiringRentals()</code>.
+ *
+ * @param swept    The number of rentals marked.
+ * @param expiring The number of reminders that a rental expires soon.
+ * @param expired  The number of rentals closed because they ran out, each with
+ *                 a reminder.
+ */
+public record ExpirySweep(int swept, int expiring, int expired) {
+    /**
+     * A sweep that did nothing.
+     */
+    public static final ExpirySweep NONE = new ExpirySweep(0, 0, 0);
+
+    /**
+     * GETTER METHODS FOR EXPIRYSWEEP
+     */
+    public int getSwept() {
+        return swept;
+    }
+
+    public int getExpiring() {
+        return expiring;
+    }
+
+    public int getExpired() {
+        return expired;
+    }
+
+    /**
+     * @param other Another sweep.
+     * @return The sum of this and the other sweep.
+     */
+    public ExpirySweep plus(ExpirySweep other) {
+        return new ExpirySweep(swept + other.swept, expiring + other.expiring, expired + other.expired);
+    }
+
+    @Override
+    public String toString() {
+        return expiring + " rentals expiring soon reminded, " + expired + " expired rentals closed";
+    }
+}
@@ -0,0 +1,53 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.Instant;
+
+/**
+ * Whether the application can serve requests, and the measurements the
+ * decision is based on.
+ *
+ * @param ready                If requests should be routed to this process.
+ * @param reason               Why it is not ready, <code>null</code> if it is.
+ * @param last_probe           When the store was last probed,
+ *                             <code>null</code> if never.
+ * @param probe_millis         How long the last probe took, -1 if there was
+ *                             none.
+ * @param consecutive_failures The number of probes in a row that failed.
+ * @param error_rate           The share of the recent operations that failed
+ *                             or were rejected.
+ * @param store                The state of the store now.
+ */
+public record HealthReport(boolean ready, String reason, Instant last_probe, long probe_millis,
+        int consecutive_failures, double error_rate, StoreHealth store) {
+
+    /**
+     * GETTER METHODS FOR HEALTHREPORT
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Instant getLast_probe() {
+        return last_probe;
+    }
+
+    public long getProbe_millis() {
+        return probe_millis;
+    }
+
+    public int getConsecutive_failures() {
+        return consecutive_failures;
+    }
+
+    public double getError_rate() {
+        return error_rate;
+    }
+
+    public StoreHealth getStore() {
+        return store;
+    }
+}
@@ -23,38 +23,20 @@
 
 package se.kth.iv1351.bankjdbc.model;
 
-public class Instrument implements InstrumentDTO {
-    private int instrument_id;
-    private String instrument_type;
-    private String instrument_brand;
-    private int instrument_price;
-    private int student_id; // dont remove
-
-    /**
-     * Constructor creates Instrument with the specified params;
-     * 
-     * @param instrument_id
-     * @param instrument_type
-     * @param instrument_brand
-     * @param instrument_price
-     */
-    public Instrument(int instrument_id, String instrument_type, String instrument_brand, int instrument_price) {
-        this.instrument_id = instrument_id;
-        this.instrument_type = instrument_type;
-        this.instrument_brand = instrument_brand;
-        this.instrument_price = instrument_price;
-    }
-
-    /**
-     * Constructor for Instrument with params;
-     * 
-     * @param instrument_id
-     * @param student_id
-     */
-    public Instrument(int instrument_id, int student_id) {
-        this.instrument_id = instrument_id;
-        this.student_id = student_id;
-    }
+/**
+ * An instrument that can be rented. Instances are immutable, and the type,
+ * brand and site of the instruments read from the database are shared between
+ * them, see <code>AttributeDictionary</code>, so that large listings and
+ * caches hold little more than the ids and prices.
+ *
+ * @param instrument_id
+ * @param instrument_type
+ * @param instrument_brand
+ * @param instrument_price
+ * @param site             The school where the instrument is kept.
+ */
+public record Instrument(int instrument_id, String instrument_type, String instrument_brand, int instrument_price,
+        String site) implements InstrumentDTO {
 
     /**
      * GETTER METHODS FOR INSTRUMENT
@@ -75,11 +57,12 @@ public class Instrument implements InstrumentDTO {
         return instrument_price;
     }
 
+    public String getSite() {
+        return site;
+    }
+
     /**
      * @return A string representation of all fields in this object.
-     *         Account number is instrument_type
-     *         holder is rent_ id
-     *         balance is instrument_price
      */
     @Override
     public String toString() {
@@ -92,6 +75,8 @@ public class Instrument implements InstrumentDTO {
         stringRepresentation.append(instrument_brand);
         stringRepresentation.append(" | Instrument price: ");
         stringRepresentation.append(instrument_price);
+        stringRepresentation.append(" | Site: ");
+        stringRepresentation.append(site);
         stringRepresentation.append(" ]");
         return stringRepresentation.toString();
     }
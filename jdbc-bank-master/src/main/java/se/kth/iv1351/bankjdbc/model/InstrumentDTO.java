@@ -46,5 +46,10 @@ public interface InstrumentDTO {
 
     public int getInstrument_price();
 
+    /**
+     * @return The school where the instrument is kept.
+     */
+    public String getSite();
+
     // public int getRent();
 }
@@ -0,0 +1,70 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * A search for available instruments. The text is matched against the type
+ * and brand of the instruments, both as a prefix or substring and fuzzily, so
+ * that "yam", "yamha" and "piano yamaha" all find Yamaha pianos.
+ */
+public class InstrumentQuery {
+    /**
+     * The number of instruments returned if no limit is specified.
+     */
+    public static final int DEFAULT_LIMIT = 20;
+
+    private final String text;
+    private final int minPrice;
+    private final int maxPrice;
+    private final int limit;
+    private final String site;
+
+    /**
+     * Creates a query with the specified params;
+     * 
+     * @param text     The words to search for, an empty string matches all
+     *                 instruments.
+     * @param minPrice The lowest price of a matching instrument.
+     * @param maxPrice The highest price of a matching instrument.
+     * @param limit    The maximum number of instruments to return.
+     * @param site     The only site to search, <code>null</code> searches all
+     *                 sites.
+     */
+    public InstrumentQuery(String text, int minPrice, int maxPrice, int limit, String site) {
+        this.text = text == null ? "" : text.trim().toLowerCase();
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.limit = limit;
+        this.site = site;
+    }
+
+    /**
+     * Creates a query for the specified text, with no price limits.
+     * 
+     * @param text The words to search for.
+     */
+    public InstrumentQuery(String text) {
+        this(text, 0, Integer.MAX_VALUE, DEFAULT_LIMIT, null);
+    }
+
+    /**
+     * GETTER METHODS FOR INSTRUMENTQUERY
+     */
+    public String getText() {
+        return text;
+    }
+
+    public int getMinPrice() {
+        return minPrice;
+    }
+
+    public int getMaxPrice() {
+        return maxPrice;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getSite() {
+        return site;
+    }
+}
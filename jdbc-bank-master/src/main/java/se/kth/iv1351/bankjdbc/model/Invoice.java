@@ -0,0 +1,48 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.YearMonth;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a student owes for the instruments rented during one month.
+ */
+public class Invoice {
+    private final int student_id;
+    private final YearMonth billing_month;
+    private final List<InvoiceLine> lines;
+    private final int total;
+
+    /**
+     * Creates an invoice with the specified params;
+     * 
+     * @param student_id    The billed student.
+     * @param billing_month The billed month.
+     * @param lines         One line per rented instrument.
+     */
+    public Invoice(int student_id, YearMonth billing_month, List<InvoiceLine> lines) {
+        this.student_id = student_id;
+        this.billing_month = billing_month;
+        this.lines = Collections.unmodifiableList(lines);
+        this.total = lines.stream().mapToInt(InvoiceLine::getAmount).sum();
+    }
+
+    /**
+     * GETTER METHODS FOR INVOICE
+     */
+    public int getStudent_id() {
+        return student_id;
+    }
+
+    public YearMonth getBilling_month() {
+        return billing_month;
+    }
+
+    public List<InvoiceLine> getLines() {
+        return lines;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,45 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * The charge for one rented instrument during one billing month.
+ */
+public class InvoiceLine {
+    private final int instrument_id;
+    private final String site;
+    private final int days;
+    private final int amount;
+
+    /**
+     * Creates an invoice line with the specified params;
+     * 
+     * @param instrument_id The rented instrument.
+     * @param site          The site of the rented instrument.
+     * @param days          The number of days of the month it was rented.
+     * @param amount        The charge in SEK.
+     */
+    public InvoiceLine(int instrument_id, String site, int days, int amount) {
+        this.instrument_id = instrument_id;
+        this.site = site;
+        this.days = days;
+        this.amount = amount;
+    }
+
+    /**
+     * GETTER METHODS FOR INVOICELINE
+     */
+    public int getInstrument_id() {
+        return instrument_id;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+}
@@ -0,0 +1,57 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.LocalDate;
+
+/**
+ * A rental of an instrument by a student, from <code>from_date</code> up to
+ * <code>to_date</code>. Instances are immutable.
+ *
+ * @param student_id
+ * @param instrument
+ * @param from_date
+ * @param to_date
+ */
+public record Rental(int student_id, Instrument instrument, LocalDate from_date, LocalDate to_date)
+        implements RentalDTO {
+
+    /**
+     * GETTER METHODS FOR RENTAL
+     */
+    public int getStudent_id() {
+        return student_id;
+    }
+
+    public Instrument getInstrument() {
+        return instrument;
+    }
+
+    public LocalDate getFrom_date() {
+        return from_date;
+    }
+
+    public LocalDate getTo_date() {
+        return to_date;
+    }
+
+    public boolean isActive(LocalDate today) {
+        return to_date.isAfter(today);
+    }
+
+    /**
+     * @return A string representation of all fields in this object.
+     */
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("[ Student ID: ");
+        stringRepresentation.append(student_id);
+        stringRepresentation.append(" | ");
+        stringRepresentation.append(instrument);
+        stringRepresentation.append(" | From: ");
+        stringRepresentation.append(from_date);
+        stringRepresentation.append(" | To: ");
+        stringRepresentation.append(to_date);
+        stringRepresentation.append(" ]");
+        return stringRepresentation.toString();
+    }
+}
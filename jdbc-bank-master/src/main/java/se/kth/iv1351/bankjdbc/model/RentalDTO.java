@@ -0,0 +1,35 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.LocalDate;
+
+/**
+ * Specifies a read-only view of a rental, including the rented instrument.
+ */
+public interface RentalDTO {
+
+    /**
+     * @return The id of the student renting the instrument.
+     */
+    public int getStudent_id();
+
+    /**
+     * @return The rented instrument.
+     */
+    public InstrumentDTO getInstrument();
+
+    /**
+     * @return The first day of the rental.
+     */
+    public LocalDate getFrom_date();
+
+    /**
+     * @return The day the rental ends, or ended.
+     */
+    public LocalDate getTo_date();
+
+    /**
+     * @param today The current date.
+     * @return <code>true</code> if the rental has not yet ended.
+     */
+    public boolean isActive(LocalDate today);
+}
@@ -0,0 +1,60 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * A change of a rental, published to downstream systems through the outbox,
+ * see <code>OutboxRelay</code>. Events of the same instrument are published in
+ * the order they happened. An event may be published more than once, its
+ * <code>event_id</code> tells a consumer if it has already seen it.
+ *
+ * @param event_id      Unique, and increasing for the events of an
+ *                      instrument.
+ * @param event_type    <code>rented</code>, <code>terminated</code> or
+ *                      <code>expired</code>.
+ * @param student_id
+ * @param instrument_id
+ * @param site
+ * @param from_date
+ * @param to_date       The day the rental ends, or ended.
+ * @param created_at    When the change was made.
+ */
+public record RentalEvent(long event_id, String event_type, int student_id, int instrument_id, String site,
+        LocalDate from_date, LocalDate to_date, Instant created_at) {
+
+    /**
+     * GETTER METHODS FOR RENTALEVENT
+     */
+    public long getEvent_id() {
+        return event_id;
+    }
+
+    public String getEvent_type() {
+        return event_type;
+    }
+
+    public int getStudent_id() {
+        return student_id;
+    }
+
+    public int getInstrument_id() {
+        return instrument_id;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public LocalDate getFrom_date() {
+        return from_date;
+    }
+
+    public LocalDate getTo_date() {
+        return to_date;
+    }
+
+    public Instant getCreated_at() {
+        return created_at;
+    }
+}
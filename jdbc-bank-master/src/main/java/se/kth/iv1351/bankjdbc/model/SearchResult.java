@@ -0,0 +1,52 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of an <code>InstrumentQuery</code>; the best matching available
+ * instruments, and the number of matching instruments of each type and brand.
+ */
+public class SearchResult {
+    private final List<Instrument> instruments;
+    private final int totalMatches;
+    private final Map<String, Integer> typeCounts;
+    private final Map<String, Integer> brandCounts;
+
+    /**
+     * Creates a search result with the specified params;
+     * 
+     * @param instruments  The best matches, the best first.
+     * @param totalMatches The number of matching instruments, including those
+     *                     that were not returned.
+     * @param typeCounts   The number of matches of each type, the largest first.
+     * @param brandCounts  The number of matches of each brand, the largest first.
+     */
+    public SearchResult(List<Instrument> instruments, int totalMatches, Map<String, Integer> typeCounts,
+            Map<String, Integer> brandCounts) {
+        this.instruments = Collections.unmodifiableList(instruments);
+        this.totalMatches = totalMatches;
+        this.typeCounts = Collections.unmodifiableMap(typeCounts);
+        this.brandCounts = Collections.unmodifiableMap(brandCounts);
+    }
+
+    /**
+     * GETTER METHODS FOR SEARCHRESULT
+     */
+    public List<? extends InstrumentDTO> getInstruments() {
+        return instruments;
+    }
+
+    public int getTotalMatches() {
+        return totalMatches;
+    }
+
+    public Map<String, Integer> getTypeCounts() {
+        return typeCounts;
+    }
+
+    public Map<String, Integer> getBrandCounts() {
+        return brandCounts;
+    }
+}
@@ -0,0 +1,55 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * A statement that ran slower than the profiling threshold, with the plan the
+ * database chose for it.
+ */
+public class SlowQuery {
+    private final Instant executed_at;
+    private final Duration elapsed;
+    private final String statement;
+    private final String plan;
+
+    /**
+     * Creates a slow query sample with the specified params;
+     * 
+     * @param executed_at When the statement was executed.
+     * @param elapsed     How long the statement took to execute.
+     * @param statement   The statement, with its parameters bound.
+     * @param plan        The output of <code>EXPLAIN (ANALYZE, BUFFERS)</code>
+     *                    for the statement, or why it could not be explained.
+     */
+    public SlowQuery(Instant executed_at, Duration elapsed, String statement, String plan) {
+        this.executed_at = executed_at;
+        this.elapsed = elapsed;
+        this.statement = statement;
+        this.plan = plan;
+    }
+
+    /**
+     * GETTER METHODS FOR SLOWQUERY
+     */
+    public Instant getExecuted_at() {
+        return executed_at;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public String getPlan() {
+        return plan;
+    }
+
+    @Override
+    public String toString() {
+        return elapsed.toMillis() + " ms at " + executed_at + "\n" + statement + "\n" + plan;
+    }
+}
@@ -0,0 +1,71 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.time.Duration;
+
+/**
+ * The state of a store at one moment, see <code>SoundGoodStore.getHealth()</code>.
+ * The counters only grow, two samples tell how many operations failed between
+ * them.
+ *
+ * @param connected           If the store has an open connection.
+ * @param running             The number of operations using the connection.
+ * @param max_running         The number of operations that may use the
+ *                            connection at the same time.
+ * @param waiting             The number of operations waiting to start.
+ * @param transactions        The number of transactions started.
+ * @param failed              The number of transactions that failed, after
+ *                            any retries.
+ * @param rejected            The number of operations rejected because the
+ *                            store was overloaded.
+ * @param oldest_cached       The age of the oldest cached listing, or
+ *                            <code>null</code> if nothing is cached.
+ */
+public record StoreHealth(boolean connected, int running, int max_running, int waiting, long transactions,
+        long failed, long rejected, Duration oldest_cached) {
+
+    /**
+     * GETTER METHODS FOR STOREHEALTH
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public int getMax_running() {
+        return max_running;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public Duration getOldest_cached() {
+        return oldest_cached;
+    }
+
+    /**
+     * @param earlier An earlier sample of the same store.
+     * @return The share of the operations since the earlier sample that failed
+     *         or were rejected, 0 if there were none.
+     */
+    public double errorRateSince(StoreHealth earlier) {
+        long errors = failed - earlier.failed + rejected - earlier.rejected;
+        long operations = transactions - earlier.transactions + rejected - earlier.rejected;
+        return operations <= 0 ? 0 : (double) errors / operations;
+    }
+}
@@ -0,0 +1,30 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.util.List;
+
+/**
+ * How many instruments of a type are available, with the cheapest of them. One
+ * row of the availability overview.
+ *
+ * @param instrument_type
+ * @param available       The number of available instruments of the type.
+ * @param cheapest        The cheapest available instruments of the type,
+ *                        cheapest first.
+ */
+public record TypeAvailability(String instrument_type, int available, List<Instrument> cheapest) {
+
+    /**
+     * GETTER METHODS FOR TYPEAVAILABILITY
+     */
+    public String getInstrument_type() {
+        return instrument_type;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public List<? extends InstrumentDTO> getCheapest() {
+        return cheapest;
+    }
+}
@@ -0,0 +1,64 @@
+package se.kth.iv1351.bankjdbc.startup;
+
+import java.util.List;
+import java.util.Random;
+
+import se.kth.iv1351.bankjdbc.integration.InMemorySoundGoodStore;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+
+/**
+ * Fills an <code>InMemorySoundGoodStore</code> with generated instruments, for
+ * demos and benchmarks when there is no SoundGood database.
+ */
+public class DemoCatalog {
+    private static final String[] TYPES = { "Piano", "Guitar", "Drums", "Violin", "Cello", "Flute",
+            "Saxophone", "Trumpet" };
+    private static final String[][] BRANDS = {
+            { "Yamaha", "Steinway", "Kawai" },
+            { "Fender", "Gibson", "Ibanez" },
+            { "Pearl", "Tama", "Ludwig" },
+            { "Stentor", "Yamaha", "Eastman" },
+            { "Stentor", "Eastman" },
+            { "Yamaha", "Pearl" },
+            { "Selmer", "Yamaha", "Yanagisawa" },
+            { "Bach", "Yamaha" } };
+    private static final int[] BASE_PRICES = { 600, 150, 300, 200, 350, 100, 250, 150 };
+    private static final String[] SITES = { "Kista", "Solna", "Sodermalm" };
+
+    private DemoCatalog() {
+    }
+
+    /**
+     * @return The instrument types used in the generated catalogs.
+     */
+    public static List<String> types() {
+        return List.of(TYPES);
+    }
+
+    /**
+     * @return The sites used in the generated catalogs.
+     */
+    public static List<String> sites() {
+        return List.of(SITES);
+    }
+
+    /**
+     * Adds instruments with the ids 1 to <code>count</code>, spread over the
+     * sites, to the specified store. The same count always gives the same
+     * catalog.
+     *
+     * @param store The store to fill.
+     * @param count The number of instruments to add.
+     * @return The filled store.
+     */
+    public static InMemorySoundGoodStore fill(InMemorySoundGoodStore store, int count) {
+        Random random = new Random(count);
+        for (int id = 1; id <= count; id++) {
+            int type = random.nextInt(TYPES.length);
+            String[] brands = BRANDS[type];
+            store.addInstrument(new Instrument(id, TYPES[type], brands[random.nextInt(brands.length)],
+                    BASE_PRICES[type] + 10 * random.nextInt(10), SITES[random.nextInt(SITES.length)]));
+        }
+        return store;
+    }
+}
@@ -0,0 +1,58 @@
+package se.kth.iv1351.bankjdbc.startup;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+
+/**
+ * Starts and stops the application in an orderly way, and measures how long it
+ * takes. Create it first thing in <code>main</code>, call <code>ready()</code>
+ * when commands can be handled, and <code>shutdown()</code> when the user
+ * quits. A JVM shutdown hook calls <code>shutdown()</code> if the process is
+ * stopped in any other way, e.g. by SIGTERM during a rolling restart, so that
+ * the database session is always closed cleanly.
+ * 
+ * The times are logged as the events <code>lifecycle.ready</code> and
+ * <code>lifecycle.stopped</code>.
+ */
+public class Lifecycle {
+    private final long createdNanos = System.nanoTime();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private Controller ctrl;
+
+    /**
+     * Marks the application as ready, and registers the shutdown hook that stops
+     * the specified controller.
+     *
+     * @param ctrl The controller to shut down.
+     */
+    public void ready(Controller ctrl) {
+        this.ctrl = ctrl;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown("signal"), "shutdown"));
+        EventLog.info("lifecycle.ready",
+                "millis", (System.nanoTime() - createdNanos) / 1_000_000,
+                "sinceJvmStartMillis", ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    /**
+     * Stops the controller, if it is running, and writes the remaining log
+     * events. Only the first call has any effect.
+     *
+     * @param reason Why the application stops, e.g. quit or signal.
+     */
+    public void shutdown(String reason) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        EventLog.info("lifecycle.stopping", "reason", reason);
+        if (ctrl != null) {
+            ctrl.shutdown();
+        }
+        EventLog.info("lifecycle.stopped", "reason", reason,
+                "millis", (System.nanoTime() - startNanos) / 1_000_000);
+        EventLog.flush(1000);
+    }
+}
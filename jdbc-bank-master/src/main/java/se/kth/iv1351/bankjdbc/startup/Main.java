@@ -28,23 +28,99 @@
 */
 package se.kth.iv1351.bankjdbc.startup;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.integration.FileRentalEventSink;
+import se.kth.iv1351.bankjdbc.integration.InMemorySoundGoodStore;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodDAO;
 import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
 import se.kth.iv1351.bankjdbc.view.BlockingInterpreter;
+import se.kth.iv1351.bankjdbc.view.HealthEndpoint;
 
 /**
  * Starts the bank client.
  */
 public class Main {
+    private static final int DEMO_CATALOG_SIZE = 200;
+
     /**
-     * @param args There are no command line arguments.
+     * @param args <code>--in-memory</code> runs without a database, using a
+     *             generated catalog that is lost when the program ends.
+     *             <code>--snapshot file</code> uses the SoundGood database, with
+     *             its caches filled from a snapshot written by the
+     *             <code>SNAPSHOT</code> command, see <code>WarmStart</code>.
+     *             Without arguments the SoundGood database is used.
      */
     public static void main(String[] args) {
+        Lifecycle lifecycle = new Lifecycle();
+        HealthEndpoint health = null;
         try {
-            new BlockingInterpreter(new Controller()).handleCmds();
+            Controller ctrl;
+            if (args.length > 0 && args[0].equals("--in-memory")) {
+                System.out.println("Running without database, using " + DEMO_CATALOG_SIZE + " demo instruments.");
+                ctrl = new Controller(DemoCatalog.fill(new InMemorySoundGoodStore(), DEMO_CATALOG_SIZE));
+            } else if (args.length > 1 && args[0].equals("--snapshot")) {
+                ctrl = new Controller(WarmStart.restore(Path.of(args[1])),
+                        new SoundGoodDAO(SoundGoodDAO.BACKGROUND_QUEUE_MILLIS));
+            } else {
+                ctrl = new Controller();
+            }
+            ctrl.startExpirySweeper();
+            startOutboxRelay(ctrl);
+            health = startHealthEndpoint(ctrl);
+            lifecycle.ready(ctrl);
+            new BlockingInterpreter(ctrl).handleCmds();
         } catch (SoundGoodException bdbe) {
             System.out.println("Could not connect to SoundGood db.");
-            bdbe.printStackTrace();
+            EventLog.error("startup.failed", bdbe);
+        } finally {
+            lifecycle.shutdown("quit");
+            if (health != null) {
+                health.stop();
+            }
+        }
+    }
+
+    /**
+     * Answers health checks on the port in the system property
+     * <code>soundgood.health.port</code>, see <code>HealthEndpoint</code>. Without
+     * it there is no endpoint and the store is not probed.
+     *
+     * @return The endpoint, or <code>null</code> if there is none.
+     */
+    private static HealthEndpoint startHealthEndpoint(Controller ctrl) {
+        Integer port = Integer.getInteger("soundgood.health.port");
+        if (port == null) {
+            return null;
+        }
+        ctrl.startHealthMonitor();
+        try {
+            return new HealthEndpoint(ctrl, port);
+        } catch (IOException ioe) {
+            System.out.println("Could not answer health checks on port " + port + ", " + ioe.getMessage());
+            EventLog.error("health.failed", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Delivers the rental events to the file in the system property
+     * <code>soundgood.outbox</code>, <code>rental-events.jsonl</code> by
+     * default. <code>off</code> leaves the events in the outbox.
+     */
+    private static void startOutboxRelay(Controller ctrl) {
+        String outbox = System.getProperty("soundgood.outbox", "rental-events.jsonl");
+        if (outbox.equals("off")) {
+            return;
+        }
+        try {
+            ctrl.startOutboxRelay(new FileRentalEventSink(Path.of(outbox)));
+        } catch (IOException ioe) {
+            System.out.println("Could not open " + outbox + ", rental events are kept in the outbox.");
+            EventLog.error("outbox.failed", ioe);
         }
     }
 }
@@ -0,0 +1,116 @@
+package se.kth.iv1351.bankjdbc.startup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import se.kth.iv1351.bankjdbc.integration.CatalogSnapshot;
+import se.kth.iv1351.bankjdbc.integration.Deadline;
+import se.kth.iv1351.bankjdbc.integration.InMemorySoundGoodStore;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodDAO;
+import se.kth.iv1351.bankjdbc.integration.SoundGoodException;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.Rental;
+
+/**
+ * Restarts with warm caches, from a snapshot written by the
+ * <code>SNAPSHOT</code> command, instead of reading every listing from the
+ * database on first use. The database is still the store that records every
+ * rental, the snapshot only fills the listing cache of the DAO, see
+ * <code>SoundGoodDAO.warmUp()</code>.
+ * 
+ * The snapshot is restored in an <code>InMemorySoundGoodStore</code>, which is
+ * brought up to date by applying the rentals made or terminated in the
+ * database since the snapshot was taken, and then lists the available
+ * instruments of every type at every site. If the catalog version in the
+ * database differs from the one in the snapshot, instruments have been added,
+ * changed or removed since, which the rentals can not repair, and nothing is
+ * cached. All of it is done before the application reports itself ready.
+ */
+class WarmStart {
+    /**
+     * The replay starts this long before the snapshot was taken. A rental is
+     * stamped with the start of the transaction that changed it, so a
+     * transaction that was running when the snapshot was taken could otherwise
+     * be missed. Replaying a rental twice does no harm.
+     */
+    private static final Duration REPLAY_OVERLAP = Duration.ofMinutes(1);
+    private static final Duration REPLAY_TIMEOUT = Duration.ofSeconds(30);
+
+    private WarmStart() {
+    }
+
+    /**
+     * Connects to the SoundGood database, and fills its caches from the
+     * specified snapshot. If the snapshot can not be read, or is too old to
+     * bring up to date, the DAO starts with empty caches.
+     *
+     * @param snapshot The snapshot file.
+     * @return The DAO, with warm caches if the snapshot could be used.
+     * @throws SoundGoodException If the database can not be reached.
+     */
+    static SoundGoodDAO restore(Path snapshot) throws SoundGoodException {
+        SoundGoodDAO soundGood = new SoundGoodDAO();
+        long startNanos = System.nanoTime();
+        CatalogState state;
+        try {
+            state = CatalogSnapshot.read(snapshot);
+        } catch (IOException e) {
+            EventLog.warn("snapshot.skipped", "file", snapshot, "message", e.getMessage());
+            System.out.println("Could not read the snapshot, starting with empty caches. " + e.getMessage());
+            return soundGood;
+        }
+        try {
+            int listings = warmUp(soundGood, state, Deadline.after(REPLAY_TIMEOUT));
+            long millis = (System.nanoTime() - startNanos) / 1_000_000;
+            EventLog.info("snapshot.restored", "file", snapshot, "takenAt", state.getTaken_at(),
+                    "listings", listings, "millis", millis);
+            System.out.println("Cached " + listings + " listings from " + snapshot + " in " + millis + " ms.");
+        } catch (SoundGoodException e) {
+            EventLog.warn("snapshot.skipped", "file", snapshot, "message", e.getMessage());
+            System.out.println("Could not bring the snapshot up to date, starting with empty caches.");
+        }
+        return soundGood;
+    }
+
+    /**
+     * @return The number of listings cached, 0 if the snapshot is stale.
+     */
+    private static int warmUp(SoundGoodDAO soundGood, CatalogState snapshot, Deadline deadline)
+            throws SoundGoodException {
+        long generation = soundGood.getListingGeneration();
+        long catalog_version = soundGood.readCatalogVersion(deadline);
+        if (catalog_version != snapshot.getCatalog_version()) {
+            EventLog.warn("snapshot.stale", "catalogVersion", catalog_version,
+                    "snapshotCatalogVersion", snapshot.getCatalog_version());
+            return 0;
+        }
+        List<Rental> changes = soundGood.findRentalChangesSince(snapshot.getTaken_at().minus(REPLAY_OVERLAP),
+                deadline);
+        InMemorySoundGoodStore current = new InMemorySoundGoodStore();
+        current.restore(snapshot);
+        current.applyRentalChanges(changes);
+        Set<String> types = new TreeSet<>();
+        Set<String> sites = new TreeSet<>();
+        for (Instrument instrument : snapshot.getInstruments()) {
+            types.add(instrument.getInstrument_type());
+            sites.add(instrument.getSite());
+        }
+        List<String> listedSites = new ArrayList<>(sites);
+        listedSites.add(null);
+        int listings = 0;
+        for (String site : listedSites) {
+            for (String type : types) {
+                soundGood.warmUp(site, type, current.printListInstrument(type, site, deadline), generation);
+                listings++;
+            }
+        }
+        return listings;
+    }
+}
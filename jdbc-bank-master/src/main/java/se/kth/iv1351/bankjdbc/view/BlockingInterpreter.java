@@ -24,11 +24,19 @@
 
 package se.kth.iv1351.bankjdbc.view;
 
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Scanner;
 
 import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.CatalogState;
 import se.kth.iv1351.bankjdbc.model.InstrumentDTO;
+import se.kth.iv1351.bankjdbc.model.InstrumentException;
+import se.kth.iv1351.bankjdbc.model.RentalDTO;
+import se.kth.iv1351.bankjdbc.model.SearchResult;
+import se.kth.iv1351.bankjdbc.model.SlowQuery;
+import se.kth.iv1351.bankjdbc.model.TypeAvailability;
 
 /**
  * Reads and interprets user commands. This command interpreter is blocking, the
@@ -40,6 +48,11 @@ public class BlockingInterpreter {
     private final Scanner console = new Scanner(System.in);
     private Controller ctrl;
     private boolean keepReceivingCmds = false;
+    /**
+     * The site of the front desk using this interpreter. The catalog commands
+     * only show instruments at this site, all sites if it is <code>null</code>.
+     */
+    private String site;
 
     /**
      * Creates a new instance that will use the specified controller for all
@@ -80,27 +93,99 @@ public class BlockingInterpreter {
                         }
                         System.out.println(
                                 "\nLIST - All instruments that are available to rent. Type the instrument you want to rent.\n"
-                                        + "END - Terminate rental of a instrument. Type the id of the instrument you want to end rental of. \n"
+                                        + "OVERVIEW - The number of available instruments of each type and the cheapest of them. Optionally type how many of each, e.g. OVERVIEW 5.\n"
+                                        + "END - Terminate rental of a instrument. Type the id of the instrument you want to end rental of, and optionally a request id. \n"
                                         + "HELP - See all available commands.\n"
                                         + "QUIT - Leave the chat application.\n"
-                                        + "RENT - Rent a new instrument. Type the id of the student and then of the instrument's.\n");
+                                        + "RENT - Rent a new instrument. Type the id of the student and then of the instrument's, and optionally a request id that makes a retry safe, e.g. RENT 1 3 req-17.\n"
+                                        + "AVAILABLE - Instruments of a type that are free during a period. Type the instrument, the first day and the return day, e.g. AVAILABLE piano 2022-02-01 2022-03-01.\n"
+                                        + "SEARCH - Search available instruments by type and brand, e.g. SEARCH yamaha piano 500-800.\n"
+                                        + "MYRENTALS - List the rentals of a student. Type the id of the student.\n"
+                                        + "SITE - Show only the instruments at one site in LIST, AVAILABLE and SEARCH, e.g. SITE Kista. SITE all shows all sites, SITE alone lists the sites.\n"
+                                        + "PROFILE - Show the slowest statements and their plans. PROFILE 100 captures statements slower than 100 ms, PROFILE off stops.\n"
+                                        + "SNAPSHOT - Write all instruments and active rentals to a file, e.g. SNAPSHOT catalog.snap. Start with --snapshot catalog.snap to restart with warm caches.\n"
+                                        + "SWEEP - Remind the students whose rentals expire within two weeks, and close expired rentals. Done once a day in the background.\n"
+                                        + "BILL - Create the invoices of all students for a month. Type the month as yyyy-mm.\n"
+                                        + "STATS - Show how many transactions have been retried or rejected.\n");
                         break;
                     case QUIT:
                         keepReceivingCmds = false;
                         break;
                     case RENT:
-                        ctrl.rentInstrument((cmdLine.getParameter(0)), cmdLine.getParameter(1));
+                        if (ctrl.rentInstrument(cmdLine.getParameter(0), cmdLine.getParameter(1),
+                                cmdLine.getParameter(2))) {
+                            System.out.println("The requested rental has been logged.");
+                        } else {
+                            System.out.println("Requested rental has been denied. \n The student with id \""
+                                    + cmdLine.getParameter(0) + "\" has reached rental limit OR the instrument with id \""
+                                    + cmdLine.getParameter(1) + "\" is already rented.");
+                        }
                         break;
                     case END:
-                        ctrl.terminateRental(cmdLine.getParameter(0));
+                        if (ctrl.terminateRental(cmdLine.getParameter(0), cmdLine.getParameter(1))) {
+                            System.out.println("Rental of instrument with the id " + cmdLine.getParameter(0)
+                                    + " has been terminated");
+                        } else {
+                            System.out.println("Couldn't remove rental of instrument with id " + cmdLine.getParameter(0)
+                                    + " because it hasn't been rented out.");
+                        }
+                        break;
+                    case MYRENTALS:
+                        LocalDate today = LocalDate.now();
+                        List<? extends RentalDTO> rentals = ctrl.listStudentRentals(cmdLine.getParameter(0));
+                        if (rentals.isEmpty()) {
+                            System.out.println("Student with id \"" + cmdLine.getParameter(0)
+                                    + "\" has never rented an instrument.\n");
+                        }
+                        for (RentalDTO rental : rentals) {
+                            InstrumentDTO instrument = rental.getInstrument();
+                            System.out.println((rental.isActive(today) ? "-- ACTIVE" : "-- PAST  ")
+                                    + " | Instrument ID: " + instrument.getInstrument_id()
+                                    + " | Type: " + instrument.getInstrument_type()
+                                    + " | Brand: " + instrument.getInstrument_brand()
+                                    + " | Price: " + instrument.getInstrument_price() + " SEK"
+                                    + " | " + rental.getFrom_date() + " - " + rental.getTo_date() + " --");
+                        }
+                        break;
+                    case BILL:
+                        System.out.println(ctrl.runBilling(cmdLine.getParameter(0)));
+                        break;
+                    case STATS:
+                        System.out.println(ctrl.getStatistics());
+                        break;
+                    case SITE:
+                        if (cmdLine.getParameter(0) == null || cmdLine.getParameter(0).isEmpty()) {
+                            System.out.println("Sites: " + String.join(", ", ctrl.listSites())
+                                    + "\nCurrent site: " + (site == null ? "all" : site));
+                        } else if (cmdLine.getParameter(0).equalsIgnoreCase("all")) {
+                            site = null;
+                            System.out.println("Showing instruments at all sites.");
+                        } else {
+                            site = ctrl.findSite(cmdLine.getParameter(0));
+                            System.out.println("Showing instruments at " + site + ".");
+                        }
+                        break;
+                    case PROFILE:
+                        List<SlowQuery> slowest = ctrl.profileSlowQueries(cmdLine.getParameter(0));
+                        System.out.println("\n--" + slowest.size() + " slowest statements--");
+                        for (SlowQuery slow : slowest) {
+                            System.out.println("\n" + slow);
+                        }
+                        break;
+                    case SWEEP:
+                        System.out.println(ctrl.sweepExpiringRentals());
+                        break;
+                    case SNAPSHOT:
+                        CatalogState state = ctrl.exportSnapshot(cmdLine.getParameter(0));
+                        System.out.println("Wrote " + state + " to " + cmdLine.getParameter(0) + ".");
                         break;
                     /**
                      * Lists all available instruments or a by a specific type.
                      */
                     case LIST:
                         List<? extends InstrumentDTO> instruments = null;
-                        instruments = ctrl.printListAllInstruments();
                         if (cmdLine.getParameter(0).equals("")) {
+                            instruments = ctrl.printListAllInstruments(site);
                             System.out.println(
                                     "\n--All available Instruments--");
                             for (InstrumentDTO instrument : instruments) {
@@ -108,42 +193,106 @@ public class BlockingInterpreter {
                                         "-- Instrument ID: " + instrument.getInstrument_id()
                                                 + " | Type: " + instrument.getInstrument_type()
                                                 + " | Brand: " + instrument.getInstrument_brand()
-                                                + " | Price: " + instrument.getInstrument_price() + " SEK --\n");
+                                                + " | Price: " + instrument.getInstrument_price() + " SEK"
+                                                + " | Site: " + instrument.getSite() + " --\n");
                             }
                         } else {
+                            instruments = ctrl.printListInstrument(cmdLine.getParameter(0), site);
                             if (instruments.size() > 0) {
                                 System.out.println(
                                         "Available Instruments of the type -" + cmdLine.getParameter(0).toUpperCase()
                                                 + "-\n");
-                                boolean foundInstruments = false;
                                 for (InstrumentDTO instrument : instruments) {
-                                    if (cmdLine.getParameter(0).equals(instrument.getInstrument_type())) {
-                                        foundInstruments = true;
-                                        System.out.println("Instrument ID: " + instrument.getInstrument_id()
-                                                + "\nType: " + instrument.getInstrument_type()
-                                                + "\nBrand: " + instrument.getInstrument_brand()
-                                                + "\nPrice: " + instrument.getInstrument_price() + " SEK\n");
-                                    }
+                                    System.out.println("Instrument ID: " + instrument.getInstrument_id()
+                                            + "\nType: " + instrument.getInstrument_type()
+                                            + "\nBrand: " + instrument.getInstrument_brand()
+                                            + "\nPrice: " + instrument.getInstrument_price() + " SEK"
+                                            + "\nSite: " + instrument.getSite() + "\n");
                                 }
-                                if (!foundInstruments)
-                                    System.out.println(
-                                            "Found no available instruments of type \"" + cmdLine.getParameter(0)
-                                                    + "\"!\nPlease check your spelling or reenter a different instrument.\n");
+                            } else {
+                                System.out.println(
+                                        "Found no available instruments of type \"" + cmdLine.getParameter(0)
+                                                + "\"!\nPlease check your spelling or try SEARCH.\n");
                             }
                         }
                         break;
+                    case OVERVIEW:
+                        String top = cmdLine.getParameter(0).equals("") ? null : cmdLine.getParameter(0);
+                        List<TypeAvailability> overview = ctrl.listAvailabilityByType(top, site);
+                        System.out.println("\n--Available instruments by type--");
+                        for (TypeAvailability type : overview) {
+                            System.out.println(type.getInstrument_type() + ": " + type.getAvailable() + " available");
+                            for (InstrumentDTO instrument : type.getCheapest()) {
+                                System.out.println("   -- Instrument ID: " + instrument.getInstrument_id()
+                                        + " | Brand: " + instrument.getInstrument_brand()
+                                        + " | Price: " + instrument.getInstrument_price() + " SEK"
+                                        + " | Site: " + instrument.getSite() + " --");
+                            }
+                        }
+                        System.out.println();
+                        break;
+                    case AVAILABLE:
+                        List<? extends InstrumentDTO> free = ctrl.findAvailable(cmdLine.getParameter(0),
+                                cmdLine.getParameter(1), cmdLine.getParameter(2), site);
+                        System.out.println("\n--" + free.size() + " instruments of the type "
+                                + cmdLine.getParameter(0).toUpperCase() + " are free from " + cmdLine.getParameter(1)
+                                + " until " + cmdLine.getParameter(2) + "--");
+                        for (InstrumentDTO instrument : free) {
+                            System.out.println(
+                                    "-- Instrument ID: " + instrument.getInstrument_id()
+                                            + " | Brand: " + instrument.getInstrument_brand()
+                                            + " | Price: " + instrument.getInstrument_price() + " SEK"
+                                            + " | Site: " + instrument.getSite() + " --");
+                        }
+                        break;
+                    case SEARCH:
+                        printSearchResult(search(cmdLine));
+                        break;
                     default:
                         System.out.println("Illegal command");
                 }
             } catch (Exception e) {
                 System.out.println("Operation failed");
                 System.out.println(e.getMessage());
-                e.printStackTrace();
+                EventLog.error("command.failed", e);
             }
         }
 
     }
 
+    /**
+     * All parameters are the search text, except the last one if it is a price
+     * range like 100-500.
+     */
+    private SearchResult search(CmdLine cmdLine) throws InstrumentException {
+        StringBuilder text = new StringBuilder();
+        String priceRange = null;
+        for (int i = 0; cmdLine.getParameter(i) != null; i++) {
+            String param = cmdLine.getParameter(i);
+            if (cmdLine.getParameter(i + 1) == null && param.matches("\\d*-\\d*") && param.length() > 1) {
+                priceRange = param;
+            } else {
+                text.append(param).append(" ");
+            }
+        }
+        return ctrl.searchInstruments(text.toString(), priceRange, site);
+    }
+
+    private void printSearchResult(SearchResult result) {
+        System.out.println("\n--" + result.getTotalMatches() + " available instruments found, showing "
+                + result.getInstruments().size() + "--");
+        for (InstrumentDTO instrument : result.getInstruments()) {
+            System.out.println(
+                    "-- Instrument ID: " + instrument.getInstrument_id()
+                            + " | Type: " + instrument.getInstrument_type()
+                            + " | Brand: " + instrument.getInstrument_brand()
+                            + " | Price: " + instrument.getInstrument_price() + " SEK"
+                            + " | Site: " + instrument.getSite() + " --");
+        }
+        System.out.println("\nBy type: " + result.getTypeCounts());
+        System.out.println("By brand: " + result.getBrandCounts() + "\n");
+    }
+
     private String readNextLine() {
         System.out.print(PROMPT);
         return console.nextLine();
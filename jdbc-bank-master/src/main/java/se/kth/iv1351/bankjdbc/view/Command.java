@@ -34,7 +34,13 @@ public enum Command {
      */
     LIST,
     /**
-     * Ends the rental of specified instrument_id.
+     * Shows how many instruments of each type are available, with the cheapest
+     * of each type, OVERVIEW or OVERVIEW 5
+     */
+    OVERVIEW,
+    /**
+     * Ends the rental of specified instrument_id, optionally with a request id,
+     * END 3 req-18
      */
     END,
     /**
@@ -50,7 +56,50 @@ public enum Command {
      */
     ILLEGAL_COMMAND,
     /**
-     * Rents new instrument
+     * Rents new instrument, optionally with a request id that makes a retry
+     * safe, RENT 1 3 req-17
      */
     RENT,
+    /**
+     * Lists the instruments of a type that are free during a future period,
+     * AVAILABLE piano 2022-02-01 2022-03-01
+     */
+    AVAILABLE,
+    /**
+     * Searches available instruments by type and brand, optionally within a
+     * price range, SEARCH yam piano 500-800
+     */
+    SEARCH,
+    /**
+     * Lists the active and past rentals of a student, MYRENTALS 42
+     */
+    MYRENTALS,
+    /**
+     * Bills all students for a month, BILL 2022-01
+     */
+    BILL,
+    /**
+     * Prints the transaction retry and overload counters.
+     */
+    STATS,
+    /**
+     * Prints the slowest statements with their plans. PROFILE 100 profiles
+     * statements slower than 100 ms, PROFILE off stops profiling.
+     */
+    PROFILE,
+    /**
+     * Selects the site whose instruments LIST, AVAILABLE and SEARCH show, SITE
+     * Kista. SITE all shows all sites, SITE alone lists the sites.
+     */
+    SITE,
+    /**
+     * Writes all instruments and active rentals to a snapshot file, SNAPSHOT
+     * catalog.snap
+     */
+    SNAPSHOT,
+    /**
+     * Reminds the students whose rentals expire soon, and closes the expired
+     * rentals, now instead of at the next scheduled sweep.
+     */
+    SWEEP,
 }
@@ -0,0 +1,114 @@
+package se.kth.iv1351.bankjdbc.view;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.logging.EventLog;
+import se.kth.iv1351.bankjdbc.model.HealthReport;
+import se.kth.iv1351.bankjdbc.model.StoreHealth;
+
+/**
+ * Answers health checks over HTTP, for the orchestrator that routes traffic to
+ * the application. Both paths answer with the latest health report as JSON,
+ * and never access the database themselves.
+ * <ul>
+ * <li><code>GET /health</code> answers 200 as long as the process runs.</li>
+ * <li><code>GET /ready</code> answers 200 if the application is ready to
+ * serve, and 503 if not, e.g. when the database is slow or lost, or the
+ * application is shutting down.</li>
+ * </ul>
+ */
+public class HealthEndpoint {
+    private final Controller ctrl;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts answering health checks.
+     *
+     * @param ctrl The controller whose health is reported.
+     * @param port The port to listen on, 0 for any free port.
+     * @throws IOException If the port could not be opened.
+     */
+    public HealthEndpoint(Controller ctrl, int port) throws IOException {
+        this.ctrl = ctrl;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "health-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/health", exchange -> respond(exchange, false));
+        server.createContext("/ready", exchange -> respond(exchange, true));
+        server.setExecutor(executor);
+        server.start();
+        EventLog.info("health.listening", "port", getPort());
+    }
+
+    /**
+     * @return The port the endpoint listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops answering health checks.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void respond(HttpExchange exchange, boolean readiness) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            HealthReport report = ctrl.getHealth();
+            byte[] body = toJson(report).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            int status = readiness && !report.isReady() ? 503 : 200;
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static String toJson(HealthReport report) {
+        StoreHealth store = report.getStore();
+        return "{\"ready\":" + report.isReady()
+                + ",\"reason\":" + (report.getReason() == null ? "null" : EventLog.quote(report.getReason()))
+                + ",\"lastProbe\":" + (report.getLast_probe() == null ? "null"
+                        : EventLog.quote(report.getLast_probe().toString()))
+                + ",\"probeMillis\":" + report.getProbe_millis()
+                + ",\"consecutiveFailures\":" + report.getConsecutive_failures()
+                + ",\"errorRate\":" + String.format(Locale.ROOT, "%.3f", report.getError_rate())
+                + ",\"store\":{\"connected\":" + store.isConnected()
+                + ",\"running\":" + store.getRunning()
+                + ",\"maxRunning\":" + store.getMax_running()
+                + ",\"waiting\":" + store.getWaiting()
+                + ",\"transactions\":" + store.getTransactions()
+                + ",\"failed\":" + store.getFailed()
+                + ",\"rejected\":" + store.getRejected()
+                + ",\"oldestCachedMillis\":" + (store.getOldest_cached() == null ? "null"
+                        : store.getOldest_cached().toMillis())
+                + "}}\n";
+    }
+}
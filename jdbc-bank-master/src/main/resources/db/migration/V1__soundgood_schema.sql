@@ -0,0 +1,85 @@
+-- The SoundGood schema; instruments and the rentals of them.
+--
+-- The tables may already exist in databases created before migrations were
+-- introduced, so they are created only if missing, and the keys and
+-- constraints are added to existing tables if missing, after repairing, or
+-- moving aside, the existing rows that would violate them.
+
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+CREATE TABLE IF NOT EXISTS instrument
+(
+  instrument_id SERIAL PRIMARY KEY,
+  type_of_instrument VARCHAR(100) NOT NULL,
+  instrument_brand VARCHAR(100) NOT NULL,
+  instrument_price INT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS rentingInstrument
+(
+  student_id INT NOT NULL,
+  instrument_id INT NOT NULL,
+  from_date DATE NOT NULL,
+  to_date DATE NOT NULL
+);
+
+ALTER TABLE rentingInstrument ADD COLUMN IF NOT EXISTS rental_id SERIAL PRIMARY KEY;
+
+DO $$
+DECLARE
+  repaired INT;
+BEGIN
+  -- The foreign key of the rentals needs the primary key of the instruments,
+  -- which an existing instrument table may have been created without.
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint
+                 WHERE conrelid = 'instrument'::regclass AND contype = 'p') THEN
+    ALTER TABLE instrument ADD PRIMARY KEY (instrument_id);
+  END IF;
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'instrument_price_check') THEN
+    ALTER TABLE instrument ADD CONSTRAINT instrument_price_check CHECK (instrument_price >= 0);
+  END IF;
+  -- Rentals of instruments that no longer exist can not be kept in the
+  -- rental table once it references the instruments. They are moved to
+  -- orphaned_rental, so that they can be reviewed instead of being lost.
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'rentinginstrument_instrument_fk') THEN
+    CREATE TABLE IF NOT EXISTS orphaned_rental (LIKE rentingInstrument);
+    WITH orphaned AS (
+      DELETE FROM rentingInstrument r
+      WHERE NOT EXISTS (SELECT 1 FROM instrument i WHERE i.instrument_id = r.instrument_id)
+      RETURNING r.*)
+    INSERT INTO orphaned_rental SELECT * FROM orphaned;
+    GET DIAGNOSTICS repaired = ROW_COUNT;
+    IF repaired > 0 THEN
+      RAISE WARNING 'Moved % rentals of instruments that do not exist to orphaned_rental.', repaired;
+    END IF;
+    ALTER TABLE rentingInstrument ADD CONSTRAINT rentinginstrument_instrument_fk
+      FOREIGN KEY (instrument_id) REFERENCES instrument ON DELETE RESTRICT;
+  END IF;
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'rentinginstrument_period_check') THEN
+    UPDATE rentingInstrument SET to_date = from_date WHERE to_date < from_date;
+    GET DIAGNOSTICS repaired = ROW_COUNT;
+    RAISE NOTICE 'Ended % rentals that ended before they started on their start date.', repaired;
+    ALTER TABLE rentingInstrument ADD CONSTRAINT rentinginstrument_period_check
+      CHECK (from_date <= to_date);
+  END IF;
+  -- An instrument can not be rented by two students at the same time. The
+  -- rental period includes from_date but not to_date, so a rental may start
+  -- the day the previous one was terminated.
+  --
+  -- Terminating a rental used to set the end date of every rental of the
+  -- instrument, also of the ones that had already ended, so existing rentals
+  -- may overlap. Each of them is trimmed to end when the next rental of the
+  -- same instrument starts.
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'rentinginstrument_no_overlap') THEN
+    UPDATE rentingInstrument r SET to_date = later.from_date
+    FROM (SELECT rental_id, LEAD(from_date) OVER (PARTITION BY instrument_id
+                                                  ORDER BY from_date, rental_id) AS from_date
+          FROM rentingInstrument) later
+    WHERE r.rental_id = later.rental_id AND later.from_date < r.to_date;
+    GET DIAGNOSTICS repaired = ROW_COUNT;
+    RAISE NOTICE 'Trimmed % rentals that overlapped the next rental of the same instrument.', repaired;
+    ALTER TABLE rentingInstrument ADD CONSTRAINT rentinginstrument_no_overlap
+      EXCLUDE USING gist (instrument_id WITH =, daterange(from_date, to_date) WITH &&);
+  END IF;
+END
+$$;
@@ -0,0 +1,27 @@
+-- Indexes for the queries in SoundGoodDAO.
+
+-- Used by MYRENTALS (findRentalsByStudent) and by the rental limit check
+-- (checkStudentRentalsStmt). student_id and to_date are the key columns, the
+-- remaining rentingInstrument columns are included so that the rental rows are
+-- read from the index without visiting the table.
+CREATE INDEX IF NOT EXISTS rentinginstrument_student_to_date_idx
+  ON rentingInstrument (student_id, to_date DESC)
+  INCLUDE (instrument_id, from_date);
+
+-- Used by the availability checks of LIST, RENT and SEARCH, which look up the
+-- current rental of an instrument.
+CREATE INDEX IF NOT EXISTS rentinginstrument_instrument_to_date_idx
+  ON rentingInstrument (instrument_id, to_date);
+
+-- Used by LIST <type> (listInstrumentStmt), which ignores the case of the type.
+CREATE INDEX IF NOT EXISTS instrument_lower_type_idx
+  ON instrument (lower(type_of_instrument));
+
+-- Used by SEARCH (searchInstruments). The trigram index answers both the
+-- substring match (LIKE '%yam%') and the fuzzy word match (<%) on the combined
+-- type and brand, the price index narrows searches with a price range.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX IF NOT EXISTS instrument_search_trgm_idx
+  ON instrument USING gin (lower(type_of_instrument || ' ' || instrument_brand) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS instrument_price_idx
+  ON instrument (instrument_price);
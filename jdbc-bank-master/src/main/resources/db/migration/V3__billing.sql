@@ -0,0 +1,22 @@
+-- Tables written by the billing run (BILL command, Controller.runBilling).
+-- billing_month is the first day of the billed month. Amounts are in SEK.
+
+CREATE TABLE IF NOT EXISTS invoice
+(
+  student_id INT NOT NULL,
+  billing_month DATE NOT NULL,
+  total INT NOT NULL,
+  PRIMARY KEY (student_id, billing_month)
+);
+
+CREATE TABLE IF NOT EXISTS invoice_line
+(
+  student_id INT NOT NULL,
+  billing_month DATE NOT NULL,
+  instrument_id INT NOT NULL,
+  days INT NOT NULL,
+  amount INT NOT NULL,
+  PRIMARY KEY (student_id, billing_month, instrument_id),
+  FOREIGN KEY (student_id, billing_month) REFERENCES invoice ON DELETE CASCADE,
+  FOREIGN KEY (instrument_id) REFERENCES instrument
+);
@@ -0,0 +1,19 @@
+-- The rental period as a date range, [from_date, to_date). It is generated
+-- from from_date and to_date, which remain the columns that are written, so a
+-- rental terminated the day it started gets an empty period and never
+-- overlaps another rental.
+--
+-- The exclusion constraint is moved to the new column. Its GiST index on
+-- (instrument_id, rental_period) answers both "is the instrument rented
+-- today" (@>) and "is it rented any day of a future period" (&&) with one
+-- index probe per instrument, which makes the btree index on
+-- (instrument_id, to_date) unnecessary.
+
+ALTER TABLE rentingInstrument
+  ADD COLUMN rental_period daterange GENERATED ALWAYS AS (daterange(from_date, to_date)) STORED;
+
+ALTER TABLE rentingInstrument DROP CONSTRAINT rentinginstrument_no_overlap;
+ALTER TABLE rentingInstrument ADD CONSTRAINT rentinginstrument_no_overlap
+  EXCLUDE USING gist (instrument_id WITH =, rental_period WITH &&);
+
+DROP INDEX IF EXISTS rentinginstrument_instrument_to_date_idx;
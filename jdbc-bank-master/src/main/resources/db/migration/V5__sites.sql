@@ -0,0 +1,105 @@
+-- Sites, the schools of the chain, as a dimension of the inventory.
+--
+-- instrument and rentingInstrument are list partitioned by site, so that the
+-- queries of a front desk, which always name its site, only touch the
+-- partitions of that site. All existing instruments and rentals are moved to
+-- the site 'main'.
+--
+-- A partitioned table can only have unique keys that include the partition
+-- key, so the primary keys become (instrument_id, site) and (rental_id,
+-- site). The ids are still unique across sites, since they are taken from the
+-- same sequences as before. Exclusion constraints are not supported on
+-- partitioned tables, so rentinginstrument_no_overlap is created on each
+-- partition instead, by soundgood_add_site(). Since an instrument belongs to
+-- one site, its rentals are all in the same partition and the constraint
+-- still covers all of them.
+
+CREATE TABLE site
+(
+  site VARCHAR(50) PRIMARY KEY
+);
+
+-- Adds a site, and creates its partitions of instrument and rentingInstrument.
+-- Does nothing if the site already exists.
+CREATE FUNCTION soundgood_add_site(new_site VARCHAR) RETURNS void AS $$
+DECLARE
+  suffix TEXT := lower(regexp_replace(new_site, '[^a-zA-Z0-9]+', '_', 'g'));
+BEGIN
+  INSERT INTO site (site) VALUES (new_site) ON CONFLICT DO NOTHING;
+  IF to_regclass('instrument_' || suffix) IS NOT NULL THEN
+    RETURN;
+  END IF;
+  EXECUTE format('CREATE TABLE %I PARTITION OF instrument FOR VALUES IN (%L)',
+    'instrument_' || suffix, new_site);
+  EXECUTE format('CREATE TABLE %I PARTITION OF rentingInstrument FOR VALUES IN (%L)',
+    'rentinginstrument_' || suffix, new_site);
+  EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I'
+    ' EXCLUDE USING gist (instrument_id WITH =, rental_period WITH &&)',
+    'rentinginstrument_' || suffix, 'rentinginstrument_' || suffix || '_no_overlap');
+END
+$$ LANGUAGE plpgsql;
+
+-- Moves the existing tables aside, keeping their sequences.
+ALTER TABLE invoice_line DROP CONSTRAINT IF EXISTS invoice_line_instrument_id_fkey;
+ALTER SEQUENCE instrument_instrument_id_seq OWNED BY NONE;
+ALTER SEQUENCE rentinginstrument_rental_id_seq OWNED BY NONE;
+ALTER TABLE rentingInstrument RENAME TO rentingInstrument_unpartitioned;
+ALTER TABLE instrument RENAME TO instrument_unpartitioned;
+
+CREATE TABLE instrument
+(
+  instrument_id INT NOT NULL DEFAULT nextval('instrument_instrument_id_seq'),
+  site VARCHAR(50) NOT NULL REFERENCES site,
+  type_of_instrument VARCHAR(100) NOT NULL,
+  instrument_brand VARCHAR(100) NOT NULL,
+  instrument_price INT NOT NULL,
+  CONSTRAINT instrument_price_check CHECK (instrument_price >= 0)
+) PARTITION BY LIST (site);
+
+CREATE TABLE rentingInstrument
+(
+  rental_id INT NOT NULL DEFAULT nextval('rentinginstrument_rental_id_seq'),
+  site VARCHAR(50) NOT NULL,
+  student_id INT NOT NULL,
+  instrument_id INT NOT NULL,
+  from_date DATE NOT NULL,
+  to_date DATE NOT NULL,
+  rental_period daterange GENERATED ALWAYS AS (daterange(from_date, to_date)) STORED,
+  CONSTRAINT rentinginstrument_period_check CHECK (from_date <= to_date)
+) PARTITION BY LIST (site);
+
+SELECT soundgood_add_site('main');
+
+INSERT INTO instrument (instrument_id, site, type_of_instrument, instrument_brand, instrument_price)
+  SELECT instrument_id, 'main', type_of_instrument, instrument_brand, instrument_price
+  FROM instrument_unpartitioned;
+INSERT INTO rentingInstrument (rental_id, site, student_id, instrument_id, from_date, to_date)
+  SELECT rental_id, 'main', student_id, instrument_id, from_date, to_date
+  FROM rentingInstrument_unpartitioned;
+
+DROP TABLE rentingInstrument_unpartitioned;
+DROP TABLE instrument_unpartitioned;
+ALTER SEQUENCE instrument_instrument_id_seq OWNED BY instrument.instrument_id;
+ALTER SEQUENCE rentinginstrument_rental_id_seq OWNED BY rentingInstrument.rental_id;
+
+ALTER TABLE instrument ADD CONSTRAINT instrument_pkey PRIMARY KEY (instrument_id, site);
+ALTER TABLE rentingInstrument ADD CONSTRAINT rentinginstrument_pkey PRIMARY KEY (rental_id, site);
+ALTER TABLE rentingInstrument ADD CONSTRAINT rentinginstrument_instrument_fk
+  FOREIGN KEY (instrument_id, site) REFERENCES instrument ON DELETE RESTRICT;
+
+ALTER TABLE invoice_line ADD COLUMN site VARCHAR(50) NOT NULL DEFAULT 'main';
+ALTER TABLE invoice_line ALTER COLUMN site DROP DEFAULT;
+ALTER TABLE invoice_line ADD CONSTRAINT invoice_line_instrument_fk
+  FOREIGN KEY (instrument_id, site) REFERENCES instrument;
+
+-- The indexes of V2__indexes.sql, recreated on the partitioned tables. Each
+-- partition gets its own copy of every index.
+CREATE INDEX rentinginstrument_student_to_date_idx
+  ON rentingInstrument (student_id, to_date DESC)
+  INCLUDE (instrument_id, site, from_date);
+CREATE INDEX instrument_lower_type_idx
+  ON instrument (lower(type_of_instrument));
+CREATE INDEX instrument_search_trgm_idx
+  ON instrument USING gin (lower(type_of_instrument || ' ' || instrument_brand) gin_trgm_ops);
+CREATE INDEX instrument_price_idx
+  ON instrument (instrument_price);
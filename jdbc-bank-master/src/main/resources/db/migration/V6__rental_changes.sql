@@ -0,0 +1,12 @@
+-- When each rental was last changed, i.e. made or terminated. A node that
+-- restarts from a snapshot of the catalog replays the rentals changed after
+-- the snapshot was taken, instead of reading all instruments and rentals
+-- again.
+--
+-- Existing rentals are stamped with the time of the migration, so the first
+-- replay after it reads them all once. The index is created on the
+-- partitioned table, and thereby on the rental partition of every site.
+
+ALTER TABLE rentingInstrument ADD COLUMN changed_at timestamptz NOT NULL DEFAULT now();
+
+CREATE INDEX rentinginstrument_changed_at_idx ON rentingInstrument (changed_at);
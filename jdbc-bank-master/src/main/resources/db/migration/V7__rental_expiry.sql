@@ -0,0 +1,35 @@
+-- Marks rentals that are about to expire, or have expired, so that the
+-- reminders are computed once by the expiry sweeper instead of every time a
+-- rental is read.
+--
+-- reminded_at is set when the student has been reminded that the rental
+-- expires soon. closed_at is set when the rental is over, either by END or by
+-- the sweeper when the rental ran out. Rentals that are already over are
+-- closed here, so that the first sweep does not remind about all of them.
+
+ALTER TABLE rentingInstrument
+  ADD COLUMN reminded_at timestamptz,
+  ADD COLUMN closed_at timestamptz;
+
+UPDATE rentingInstrument SET closed_at = now() WHERE to_date <= current_date;
+
+-- The sweeper only looks at open rentals, so the index only holds them and
+-- stays small however many rentals have been closed.
+CREATE INDEX rentinginstrument_open_to_date_idx ON rentingInstrument (to_date)
+  WHERE closed_at IS NULL;
+
+-- One reminder per rental and kind. kind is 'expiring' for a rental that
+-- expires within the reminder period, and 'expired' for one that ran out.
+CREATE TABLE rental_reminder (
+  reminder_id SERIAL PRIMARY KEY,
+  rental_id INT NOT NULL,
+  site VARCHAR(50) NOT NULL,
+  student_id INT NOT NULL,
+  instrument_id INT NOT NULL,
+  to_date DATE NOT NULL,
+  kind VARCHAR(10) NOT NULL CHECK (kind IN ('expiring', 'expired')),
+  created_at timestamptz NOT NULL DEFAULT now(),
+  CONSTRAINT rental_reminder_rental_fk FOREIGN KEY (rental_id, site)
+    REFERENCES rentingInstrument (rental_id, site),
+  CONSTRAINT rental_reminder_once UNIQUE (rental_id, site, kind)
+);
@@ -0,0 +1,21 @@
+-- The outbox of rental events. Each rental that is made, terminated or
+-- closed by the expiry sweeper writes an event here, in the same statement
+-- and transaction as the change itself, so an event exists if and only if
+-- the change was committed. The outbox relay reads the events in event_id
+-- order, delivers them, and then deletes them, so the table only holds
+-- events not yet delivered and is never scanned by the rental queries.
+--
+-- Delivery is at least once; a relay that stops between delivering and
+-- deleting a batch delivers it again. Consumers make the effect exactly once
+-- by ignoring event ids they have already seen.
+
+CREATE TABLE rental_event (
+  event_id BIGSERIAL PRIMARY KEY,
+  event_type VARCHAR(10) NOT NULL CHECK (event_type IN ('rented', 'terminated', 'expired')),
+  student_id INT NOT NULL,
+  instrument_id INT NOT NULL,
+  site VARCHAR(50) NOT NULL,
+  from_date DATE NOT NULL,
+  to_date DATE NOT NULL,
+  created_at timestamptz NOT NULL DEFAULT now()
+);
@@ -0,0 +1,30 @@
+-- The version of the catalog, increased whenever an instrument is added,
+-- changed or removed. A node that restarts from a snapshot of the catalog
+-- compares the version in the snapshot with this one, to tell if the
+-- instruments have changed since the snapshot was taken. Unlike the number
+-- of instruments, it also changes when one instrument is added and another
+-- removed.
+--
+-- The trigger is a row trigger, since a row trigger on the partitioned
+-- instrument table is also created on every partition, including those added
+-- later by soundgood_add_site(), and so also fires for changes made directly
+-- in a partition.
+
+CREATE TABLE catalog_version (
+  only_row BOOLEAN PRIMARY KEY DEFAULT true CHECK (only_row),
+  version BIGINT NOT NULL
+);
+
+INSERT INTO catalog_version (version) VALUES (1);
+
+CREATE FUNCTION soundgood_bump_catalog_version() RETURNS trigger
+LANGUAGE plpgsql AS $$
+BEGIN
+  UPDATE catalog_version SET version = version + 1;
+  RETURN NULL;
+END
+$$;
+
+CREATE TRIGGER instrument_catalog_version
+  AFTER INSERT OR UPDATE OR DELETE ON instrument
+  FOR EACH ROW EXECUTE FUNCTION soundgood_bump_catalog_version();
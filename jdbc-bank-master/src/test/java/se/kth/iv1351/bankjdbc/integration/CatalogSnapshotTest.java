@@ -0,0 +1,79 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import se.kth.iv1351.bankjdbc.model.CatalogState;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.Rental;
+
+class CatalogSnapshotTest {
+    private static final Instrument GUITAR = new Instrument(1, "guitar", "Gibson", 300, "KTH");
+    private static final Instrument OTHER_GUITAR = new Instrument(2, "guitar", "Fender", 250, "KTH");
+    private static final Instrument PIANO = new Instrument(5, "piano", "Yamaha", 500, "Södermalm");
+
+    @TempDir
+    Path directory;
+
+    private static CatalogState state() {
+        LocalDate from = LocalDate.of(2026, 9, 1);
+        return new CatalogState(Instant.ofEpochMilli(1_790_000_000_123L), 42,
+                List.of(GUITAR, OTHER_GUITAR, PIANO),
+                List.of(new Rental(7, GUITAR, from, from.plusYears(1)), new Rental(8, PIANO, from, from.plusDays(3))));
+    }
+
+    @Test
+    void readsWhatWasWritten() throws IOException {
+        Path file = directory.resolve("catalog.snapshot");
+        CatalogState written = state();
+        long size = CatalogSnapshot.write(file, written);
+        assertEquals(size, Files.size(file));
+
+        CatalogState read = CatalogSnapshot.read(file);
+        assertEquals(written.getTaken_at(), read.getTaken_at());
+        assertEquals(written.getCatalog_version(), read.getCatalog_version());
+        assertEquals(written.getInstruments(), read.getInstruments());
+        assertEquals(written.getActive_rentals(), read.getActive_rentals());
+        assertSame(read.getInstruments().get(0).getInstrument_type(),
+                read.getInstruments().get(1).getInstrument_type());
+    }
+
+    @Test
+    void emptyCatalogRoundTrips() throws IOException {
+        Path file = directory.resolve("empty.snapshot");
+        CatalogSnapshot.write(file, new CatalogState(Instant.ofEpochMilli(0), 1, List.of(), List.of()));
+        CatalogState read = CatalogSnapshot.read(file);
+        assertEquals(List.of(), read.getInstruments());
+        assertEquals(List.of(), read.getActive_rentals());
+    }
+
+    @Test
+    void changedByteFailsChecksum() throws IOException {
+        Path file = directory.resolve("catalog.snapshot");
+        CatalogSnapshot.write(file, state());
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+        IOException thrown = assertThrows(IOException.class, () -> CatalogSnapshot.read(file));
+        assertTrue(thrown.getMessage().contains("checksum"), thrown.getMessage());
+    }
+
+    @Test
+    void otherFileIsRejected() throws IOException {
+        Path file = directory.resolve("other.txt");
+        Files.writeString(file, "This is not a snapshot.");
+        assertThrows(IOException.class, () -> CatalogSnapshot.read(file));
+    }
+}
@@ -0,0 +1,122 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.Rental;
+
+/**
+ * The rental rules of the in-memory store, which the database enforces with
+ * its constraints and serializable transactions.
+ */
+class InMemorySoundGoodStoreTest {
+    private static final Deadline DEADLINE = Deadline.after(Duration.ofMinutes(1));
+    private static final Instrument GUITAR = new Instrument(1, "guitar", "Gibson", 300, "KTH");
+    private static final Instrument PIANO = new Instrument(2, "piano", "Yamaha", 500, "KTH");
+    private static final Instrument DRUMS = new Instrument(3, "drums", "Pearl", 200, "SU");
+
+    private InMemorySoundGoodStore store;
+
+    @BeforeEach
+    void createStore() {
+        store = new InMemorySoundGoodStore();
+        store.addInstrument(GUITAR);
+        store.addInstrument(PIANO);
+        store.addInstrument(DRUMS);
+    }
+
+    @Test
+    void studentRentsAtMostTwoInstruments() {
+        assertTrue(store.rentInstrument(7, GUITAR.getInstrument_id(), DEADLINE));
+        assertTrue(store.rentInstrument(7, PIANO.getInstrument_id(), DEADLINE));
+        assertFalse(store.rentInstrument(7, DRUMS.getInstrument_id(), DEADLINE));
+        assertEquals(1, store.checkInstrumentRental(DRUMS.getInstrument_id(), DEADLINE));
+    }
+
+    @Test
+    void endedRentalDoesNotCountTowardsLimit() throws SoundGoodException {
+        store.rentInstrument(7, GUITAR.getInstrument_id(), DEADLINE);
+        store.rentInstrument(7, PIANO.getInstrument_id(), DEADLINE);
+        store.terminateRental(GUITAR.getInstrument_id(), DEADLINE);
+        assertTrue(store.rentInstrument(7, DRUMS.getInstrument_id(), DEADLINE));
+    }
+
+    @Test
+    void rentedInstrumentCanNotBeRentedAgain() {
+        assertTrue(store.rentInstrument(7, GUITAR.getInstrument_id(), DEADLINE));
+        assertFalse(store.rentInstrument(8, GUITAR.getInstrument_id(), DEADLINE));
+        assertEquals(0, store.checkInstrumentRental(GUITAR.getInstrument_id(), DEADLINE));
+        assertEquals(List.of(), store.findRentalsByStudent(8, DEADLINE));
+    }
+
+    @Test
+    void unknownInstrumentCanNotBeRented() {
+        assertFalse(store.rentInstrument(7, 99, DEADLINE));
+    }
+
+    @Test
+    void endingRentalEndsItToday() throws SoundGoodException {
+        store.rentInstrument(7, GUITAR.getInstrument_id(), DEADLINE);
+        store.terminateRental(GUITAR.getInstrument_id(), DEADLINE);
+        List<Rental> rentals = store.findRentalsByStudent(7, DEADLINE);
+        assertEquals(1, rentals.size());
+        assertEquals(LocalDate.now(), rentals.get(0).getTo_date());
+        assertEquals(1, store.checkInstrumentRental(GUITAR.getInstrument_id(), DEADLINE));
+    }
+
+    @Test
+    void endingRentalThatDoesNotExistFails() {
+        assertThrows(RentalNotFoundException.class,
+                () -> store.terminateRental(GUITAR.getInstrument_id(), DEADLINE));
+        assertThrows(RentalNotFoundException.class, () -> store.terminateRental(99, DEADLINE));
+    }
+
+    @Test
+    void endingRentalTwiceFails() throws SoundGoodException {
+        store.rentInstrument(7, GUITAR.getInstrument_id(), DEADLINE);
+        store.terminateRental(GUITAR.getInstrument_id(), DEADLINE);
+        assertThrows(RentalNotFoundException.class,
+                () -> store.terminateRental(GUITAR.getInstrument_id(), DEADLINE));
+    }
+
+    @Test
+    void applyingRentalChangesTwiceHasNoEffect() {
+        LocalDate today = LocalDate.now();
+        List<Rental> changes = List.of(new Rental(7, GUITAR, today.minusDays(3), today.plusDays(30)));
+        store.applyRentalChanges(changes);
+        store.applyRentalChanges(changes);
+        assertEquals(changes, store.findRentalsByStudent(7, DEADLINE));
+        assertEquals(0, store.checkInstrumentRental(GUITAR.getInstrument_id(), DEADLINE));
+    }
+
+    @Test
+    void appliedTerminationReplacesRental() {
+        LocalDate today = LocalDate.now();
+        Rental rented = new Rental(7, GUITAR, today.minusDays(3), today.plusDays(30));
+        Rental ended = new Rental(7, GUITAR, today.minusDays(3), today);
+        store.applyRentalChanges(List.of(rented, ended));
+        store.applyRentalChanges(List.of(rented, ended));
+        assertEquals(List.of(ended), store.findRentalsByStudent(7, DEADLINE));
+        assertEquals(1, store.checkInstrumentRental(GUITAR.getInstrument_id(), DEADLINE));
+    }
+
+    @Test
+    void endingAppliedRentalEndsItToday() throws SoundGoodException {
+        LocalDate today = LocalDate.now();
+        store.applyRentalChanges(List.of(new Rental(7, GUITAR, today.minusDays(3), today.plusDays(30))));
+        store.applyRentalChanges(List.of(new Rental(7, GUITAR, today.minusDays(3), today.plusDays(30))));
+        store.terminateRental(GUITAR.getInstrument_id(), DEADLINE);
+        assertEquals(List.of(new Rental(7, GUITAR, today.minusDays(3), today)),
+                store.findRentalsByStudent(7, DEADLINE));
+    }
+}
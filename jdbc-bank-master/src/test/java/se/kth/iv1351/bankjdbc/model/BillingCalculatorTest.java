@@ -0,0 +1,77 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BillingCalculatorTest {
+    private static final YearMonth APRIL = YearMonth.of(2026, 4);
+    private static final Instrument PIANO = new Instrument(1, "piano", "Yamaha", 300, "KTH");
+    private static final Instrument FLUTE = new Instrument(2, "flute", "Pearl", 100, "KTH");
+
+    private static Rental rental(Instrument instrument, LocalDate from, LocalDate to) {
+        return new Rental(7, instrument, from, to);
+    }
+
+    @Test
+    void wholeMonthIsChargedThePrice() {
+        Invoice invoice = BillingCalculator.bill(7, APRIL,
+                List.of(rental(PIANO, LocalDate.of(2026, 1, 1), LocalDate.of(2027, 1, 1))));
+        assertEquals(1, invoice.getLines().size());
+        assertEquals(30, invoice.getLines().get(0).getDays());
+        assertEquals(300, invoice.getTotal());
+    }
+
+    @Test
+    void partOfMonthIsProratedByDays() {
+        Invoice invoice = BillingCalculator.bill(7, APRIL,
+                List.of(rental(PIANO, LocalDate.of(2026, 4, 11), LocalDate.of(2026, 4, 21))));
+        assertEquals(10, invoice.getLines().get(0).getDays());
+        assertEquals(100, invoice.getTotal());
+    }
+
+    @Test
+    void amountIsRoundedToNearest() {
+        assertEquals(33, BillingCalculator.bill(7, APRIL,
+                List.of(rental(FLUTE, LocalDate.of(2026, 4, 1), LocalDate.of(2026, 4, 11)))).getTotal());
+        assertEquals(67, BillingCalculator.bill(7, APRIL,
+                List.of(rental(FLUTE, LocalDate.of(2026, 4, 1), LocalDate.of(2026, 4, 21)))).getTotal());
+        Instrument cheap = new Instrument(3, "triangle", "Meinl", 1, "KTH");
+        assertEquals(1, BillingCalculator.bill(7, APRIL,
+                List.of(rental(cheap, LocalDate.of(2026, 4, 1), LocalDate.of(2026, 4, 16)))).getTotal());
+    }
+
+    @Test
+    void returnDayIsNotCharged() {
+        Invoice invoice = BillingCalculator.bill(7, APRIL,
+                List.of(rental(PIANO, LocalDate.of(2026, 3, 20), LocalDate.of(2026, 4, 2))));
+        assertEquals(1, invoice.getLines().get(0).getDays());
+        assertEquals(10, invoice.getTotal());
+    }
+
+    @Test
+    void rentalsOutsideMonthAreNotCharged() {
+        assertNull(BillingCalculator.bill(7, APRIL, List.of(
+                rental(PIANO, LocalDate.of(2026, 3, 1), LocalDate.of(2026, 4, 1)),
+                rental(FLUTE, LocalDate.of(2026, 5, 1), LocalDate.of(2026, 6, 1)))));
+    }
+
+    @Test
+    void sameInstrumentTwiceGivesOneLine() {
+        Invoice invoice = BillingCalculator.bill(7, APRIL, List.of(
+                rental(PIANO, LocalDate.of(2026, 4, 1), LocalDate.of(2026, 4, 6)),
+                rental(FLUTE, LocalDate.of(2026, 4, 1), LocalDate.of(2026, 5, 1)),
+                rental(PIANO, LocalDate.of(2026, 4, 20), LocalDate.of(2026, 4, 30))));
+        assertEquals(2, invoice.getLines().size());
+        InvoiceLine piano = invoice.getLines().get(0);
+        assertEquals(PIANO.getInstrument_id(), piano.getInstrument_id());
+        assertEquals(15, piano.getDays());
+        assertEquals(150, piano.getAmount());
+        assertEquals(250, invoice.getTotal());
+    }
+}